@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * Map key for a nickname or channel name which compares and hashes under a
+ * case mapping. The folded hash is computed once, so lookups never fold or
+ * copy the name. Keys held by maps are immutable; a server also keeps a
+ * reusable probe per thread to look up names straight from a message's raw
+ * text.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCCaseKey {
+
+    private static final ThreadLocal<IRCCaseKey> PROBES = new ThreadLocal<IRCCaseKey>() {
+        @Override
+        protected IRCCaseKey initialValue() {
+            return new IRCCaseKey();
+        }
+    };
+
+    private CharSequence source;
+    private int start;
+    private int end;
+    private IRCCaseMapping mapping;
+    private int hash;
+
+    private IRCCaseKey() {
+    }
+
+    /**
+     * Creates a key for a name
+     *
+     * @param name the name as first seen, which is kept for display
+     * @param mapping the case mapping to compare under
+     * @return the key
+     */
+    public static IRCCaseKey of(String name, IRCCaseMapping mapping) {
+        return new IRCCaseKey().set(name, 0, name.length(), mapping);
+    }
+
+    /**
+     * Returns this thread's reusable probe pointed at a region of a sequence.
+     * The probe is only valid until the thread's next call, and should be
+     * cleared once the lookup is done.
+     */
+    static IRCCaseKey probe(CharSequence source, int start, int end, IRCCaseMapping mapping) {
+        return PROBES.get().set(source, start, end, mapping);
+    }
+
+    /**
+     * Points this key at a region of a sequence. Only for probes.
+     */
+    IRCCaseKey set(CharSequence source, int start, int end, IRCCaseMapping mapping) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.mapping = mapping;
+        this.hash = mapping.hash(source, start, end);
+        return this;
+    }
+
+    /**
+     * Drops the reference held by a probe once a lookup is done
+     */
+    void clear() {
+        source = null;
+    }
+
+    /**
+     * Returns the name as first seen
+     *
+     * @return the name
+     */
+    public String getName() {
+        return source.subSequence(start, end).toString();
+    }
+
+    /**
+     * Returns the case mapping the key compares under
+     *
+     * @return the case mapping
+     */
+    public IRCCaseMapping getMapping() {
+        return mapping;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        } else if (!(other instanceof IRCCaseKey)) {
+            return false;
+        }
+        IRCCaseKey key = (IRCCaseKey) other;
+        int length = end - start;
+        return hash == key.hash && length == key.end - key.start
+                && mapping.regionEquals(source, start, key.source, key.start, length);
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
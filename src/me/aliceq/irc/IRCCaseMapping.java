@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * Case mappings servers use to compare nicknames and channel names, as
+ * advertised by the CASEMAPPING ISUPPORT token. Folding only ever maps a
+ * character to a single other character, so names can be compared and hashed
+ * in place without allocating.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public enum IRCCaseMapping {
+
+    /**
+     * Only A-Z and a-z are equivalent
+     */
+    ASCII("ascii", 'Z'),
+    /**
+     * As ASCII, and also []\^ are equivalent to {}|~. This is what servers
+     * use when they advertise nothing.
+     */
+    RFC1459("rfc1459", '^'),
+    /**
+     * As ASCII, and also []\ are equivalent to {}|
+     */
+    STRICT_RFC1459("strict-rfc1459", ']');
+
+    private final String token;
+    private final char last;
+
+    private IRCCaseMapping(String token, char last) {
+        this.token = token;
+        this.last = last;
+    }
+
+    /**
+     * Returns the mapping for a CASEMAPPING value. Unknown values fall back to
+     * RFC1459, which folds a superset of the others' ASCII characters.
+     *
+     * @param token the advertised value, or null
+     * @return the matching mapping
+     */
+    public static IRCCaseMapping forToken(String token) {
+        if (token != null) {
+            for (IRCCaseMapping mapping : values()) {
+                if (mapping.token.equalsIgnoreCase(token)) {
+                    return mapping;
+                }
+            }
+        }
+        return RFC1459;
+    }
+
+    /**
+     * Returns the value this mapping is advertised as
+     *
+     * @return the CASEMAPPING value
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Folds a single character to lower case
+     *
+     * @param c the character
+     * @return the folded character
+     */
+    public char fold(char c) {
+        return c >= 'A' && c <= last ? (char) (c + 32) : c;
+    }
+
+    /**
+     * Folds a whole string to lower case
+     *
+     * @param value the string to fold
+     * @return the folded string, or the same instance if nothing changed
+     */
+    public String fold(String value) {
+        int length = value.length();
+        int i = 0;
+        while (i < length && fold(value.charAt(i)) == value.charAt(i)) {
+            i++;
+        }
+        if (i == length) {
+            return value;
+        }
+        char[] chars = value.toCharArray();
+        for (; i < length; i++) {
+            chars[i] = fold(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns true if two names are equivalent under this mapping
+     *
+     * @param a the first name
+     * @param b the second name
+     * @return true if the names are equivalent
+     */
+    public boolean equals(CharSequence a, CharSequence b) {
+        return a.length() == b.length() && regionEquals(a, 0, b, 0, a.length());
+    }
+
+    /**
+     * Compares two regions under this mapping
+     *
+     * @param a the first sequence
+     * @param aStart the start of the region in the first sequence
+     * @param b the second sequence
+     * @param bStart the start of the region in the second sequence
+     * @param length the length of both regions
+     * @return true if the regions are equivalent
+     */
+    public boolean regionEquals(CharSequence a, int aStart, CharSequence b, int bStart, int length) {
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(aStart + i);
+            char y = b.charAt(bStart + i);
+            if (x != y && fold(x) != fold(y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a region of a sequence so that equivalent names hash alike
+     *
+     * @param value the sequence
+     * @param start the start of the region
+     * @param end the end of the region
+     * @return the hash of the folded region
+     */
+    public int hash(CharSequence value, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + fold(value.charAt(i));
+        }
+        return hash;
+    }
+}
@@ -25,9 +25,26 @@ package me.aliceq.irc;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Channel construct which contains information about a specific channel
+ * Channel construct which contains information about a specific channel.
+ * Members are kept in a hash map keyed by their case-mapped nickname, so
+ * joins, parts, renames and lookups take constant time regardless of the
+ * channel size. Reads never lock; changes are serialized per channel.
+ * <p>
+ * A NAMES list is built up in a staging map as replies arrive and replaces
+ * the members in one step when it ends, so readers never see a half-built
+ * list and repeated NAMES do not duplicate anyone.
+ * <p>
+ * Channel modes are applied from MODE lines using the server's CHANMODES and
+ * PREFIX tokens to tell which modes take a parameter. Settings are kept by
+ * mode letter and list modes, such as bans, as sets of masks.
  *
  * @author Alice Quiros <email@aliceq.me>
  */
@@ -36,7 +53,14 @@ public class IRCChannel {
     final public IRCServer server;
 
     final private String name;
-    final private ArrayList<String> users = new ArrayList();
+    final private Object lock = new Object();
+    private volatile Map<IRCCaseKey, IRCMember> members = new ConcurrentHashMap<>();
+    private Map<IRCCaseKey, IRCMember> staging;
+    private volatile boolean synced = false;
+    final private Map<Character, String> modes = new ConcurrentHashMap<>();
+    final private Map<Character, Set<String>> lists = new ConcurrentHashMap<>();
+    private Map<Character, Set<String>> listStaging;
+    private volatile IRCCaseMapping mapping;
 
     private String topic = "";
     private int status = 0;
@@ -44,24 +68,195 @@ public class IRCChannel {
     public IRCChannel(String name, IRCServer server) {
         this.name = name;
         this.server = server;
+        this.mapping = server == null ? IRCCaseMapping.RFC1459 : server.getCaseMapping();
     }
 
     /**
-     * Returns an array of the nicks currently in the channel
+     * Returns a snapshot of the nicks currently in the channel, each with the
+     * prefix of its highest membership mode
      *
-     * @return an array of the nicks currently in the channel
+     * @return a list of prefixed nicks
      */
     public Collection<String> getUsers() {
+        List<String> users = new ArrayList<>(members.size());
+        for (IRCMember member : members.values()) {
+            users.add(member.toString());
+        }
         return users;
     }
 
     /**
-     * Adds an user to the list of getUsers
+     * Returns a snapshot of the channel's members
+     *
+     * @return an unmodifiable collection of members
+     */
+    public Collection<IRCMember> getMembers() {
+        return Collections.unmodifiableList(new ArrayList<>(members.values()));
+    }
+
+    /**
+     * Returns the number of users in the channel
+     *
+     * @return the number of members
+     */
+    public int userCount() {
+        return members.size();
+    }
+
+    /**
+     * Returns a member of the channel
+     *
+     * @param nick the member's nickname, in any case
+     * @return the member, or null if the nick is not in the channel
+     */
+    public IRCMember getMember(String nick) {
+        IRCCaseKey probe = IRCCaseKey.probe(nick, 0, nick.length(), mapping);
+        try {
+            return members.get(probe);
+        } finally {
+            probe.clear();
+        }
+    }
+
+    /**
+     * Returns true if a nick is in the channel
+     *
+     * @param nick the nickname, in any case
+     * @return true if the nick is a member
+     */
+    public boolean hasUser(String nick) {
+        return getMember(nick) != null;
+    }
+
+    /**
+     * Adds an user to the list of getUsers. The nick may carry membership
+     * prefixes, several of them with multi-prefix, and a user and host as
+     * sent with userhost-in-names. If the user is already in the channel,
+     * their entry is replaced.
      *
      * @param nick
      */
     public void addUser(String nick) {
-        users.add(nick);
+        IRCMember member = parseMember(nick, 0, nick.length(), getSupport());
+        if (member == null) {
+            return;
+        }
+
+        synchronized (lock) {
+            IRCCaseKey key = IRCCaseKey.of(member.getNick(), mapping);
+            IRCMember previous = members.put(key, member);
+            if (staging != null) {
+                staging.put(key, member);
+            }
+            if (previous == null && server != null) {
+                server.trackUser(member.getNick(), this);
+            }
+        }
+    }
+
+    /**
+     * Adds the members of one RPL_NAMREPLY to the staging list. The members
+     * replace the current ones once commitNames is called.
+     *
+     * @param names a space separated list of nicks with their prefixes
+     */
+    public void stageNames(String names) {
+        IRCSupport support = getSupport();
+        synchronized (lock) {
+            if (staging == null) {
+                staging = new ConcurrentHashMap<>();
+            }
+            int length = names.length();
+            for (int start = 0; start < length;) {
+                int end = names.indexOf(' ', start);
+                if (end < 0) {
+                    end = length;
+                }
+                IRCMember member = parseMember(names, start, end, support);
+                if (member != null) {
+                    staging.put(IRCCaseKey.of(member.getNick(), mapping), member);
+                }
+                start = end + 1;
+            }
+        }
+    }
+
+    /**
+     * Replaces the members with the staged NAMES list, as on RPL_ENDOFNAMES.
+     * If nothing was staged the channel is left empty.
+     */
+    public void commitNames() {
+        Map<IRCCaseKey, IRCMember> previous;
+        Map<IRCCaseKey, IRCMember> current;
+        synchronized (lock) {
+            current = staging == null ? new ConcurrentHashMap<>() : staging;
+            staging = null;
+            previous = members;
+            members = current;
+            synced = true;
+
+            // Bring the server's user table in line with the new list before
+            // a QUIT or NICK can see one without the other
+            if (server != null) {
+                for (Map.Entry<IRCCaseKey, IRCMember> entry : current.entrySet()) {
+                    if (!previous.containsKey(entry.getKey())) {
+                        server.trackUser(entry.getValue().getNick(), this);
+                    }
+                }
+                for (Map.Entry<IRCCaseKey, IRCMember> entry : previous.entrySet()) {
+                    if (!current.containsKey(entry.getKey())) {
+                        server.untrackUser(entry.getValue().getNick(), this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards a partly staged NAMES list, such as when some of its replies
+     * were lost. The current members are kept until the next commitNames.
+     */
+    public void discardNames() {
+        synchronized (lock) {
+            staging = null;
+        }
+    }
+
+    /**
+     * Returns true once a complete NAMES list has been received
+     *
+     * @return true if the member list is complete
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Parses a nick with its membership prefixes, several of them with
+     * multi-prefix, and an optional !user@host
+     */
+    private static IRCMember parseMember(String entry, int start, int end, IRCSupport support) {
+        int modes = 0;
+        while (start < end) {
+            int rank = support.prefixRank(entry.charAt(start));
+            if (rank < 0) {
+                break;
+            }
+            modes |= 1 << rank;
+            start++;
+        }
+        int bang = entry.indexOf('!', start);
+        if (bang >= 0 && bang < end) {
+            end = bang;
+        }
+        if (start >= end) {
+            return null;
+        }
+        return new IRCMember(entry.substring(start, end), modes, support.getPrefixSymbols());
+    }
+
+    private IRCSupport getSupport() {
+        return server == null ? IRCSupport.EMPTY : server.getSupport();
     }
 
     /**
@@ -70,15 +265,19 @@ public class IRCChannel {
      * @param nick
      */
     public void removeUser(String nick) {
-        // Has to be manually done in case of @ or +
-        for (int i = 0; i < users.size(); i++) {
-            String user = users.get(i);
-            if (user.charAt(0) == '@' || user.charAt(0) == '+') {
-                user = user.substring(1);
-            }
-            if (user.equals(nick)) {
-                users.remove(i);
-                return;
+        IRCCaseKey probe = IRCCaseKey.probe(nick, 0, nick.length(), mapping);
+        synchronized (lock) {
+            IRCMember member;
+            try {
+                if (staging != null) {
+                    staging.remove(probe);
+                }
+                member = members.remove(probe);
+            } finally {
+                probe.clear();
+            }
+            if (member != null && server != null) {
+                server.untrackUser(nick, this);
             }
         }
     }
@@ -90,18 +289,332 @@ public class IRCChannel {
      * @param add
      */
     public void replaceUser(String remove, String add) {
-        // Has to be manually done in case of @ or +
-        for (int i = 0; i < users.size(); i++) {
-            String user = users.get(i);
-            if (user.charAt(0) == '@' || user.charAt(0) == '+') {
-                user = user.substring(1);
-            }
-            if (user.equals(remove)) {
-                users.remove(i);
-                users.add(i, add);
+        synchronized (lock) {
+            removeUser(remove);
+            addUser(add);
+        }
+    }
+
+    /**
+     * Renames a user, keeping their membership modes. Nicknames are
+     * network-wide, so the user is renamed in every channel they share with
+     * us.
+     *
+     * @param from the old nickname
+     * @param to the new nickname
+     * @return true if the old nickname was known
+     */
+    public boolean renameUser(String from, String to) {
+        return server == null ? renameMember(from, to) : server.renameUser(from, to);
+    }
+
+    /**
+     * Renames a member in this channel only
+     */
+    boolean renameMember(String from, String to) {
+        IRCCaseKey probe = IRCCaseKey.probe(from, 0, from.length(), mapping);
+        synchronized (lock) {
+            IRCMember member;
+            try {
+                if (staging != null) {
+                    IRCMember staged = staging.remove(probe);
+                    if (staged != null) {
+                        staging.put(IRCCaseKey.of(to, mapping), staged.withNick(to));
+                    }
+                }
+                member = members.remove(probe);
+            } finally {
+                probe.clear();
+            }
+            if (member == null) {
+                return false;
+            }
+            members.put(IRCCaseKey.of(to, mapping), member.withNick(to));
+            if (server != null) {
+                server.retrackUser(from, to, this);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sets or clears a membership mode of a member
+     *
+     * @param nick the member's nickname
+     * @param mode the mode letter, such as 'o'
+     * @param set true to set the mode, false to clear it
+     * @return true if the nick is in the channel and the mode is a membership
+     * mode
+     */
+    public boolean setUserMode(String nick, char mode, boolean set) {
+        int rank = getSupport().modeRank(mode);
+        return rank >= 0 && setUserMode(nick, 0, nick.length(), rank, set);
+    }
+
+    /**
+     * Sets or clears a membership mode of the member named by a region of a
+     * sequence, such as a parameter of a raw MODE line
+     */
+    private boolean setUserMode(CharSequence source, int start, int end, int rank, boolean set) {
+        IRCCaseKey probe = IRCCaseKey.probe(source, start, end, mapping);
+        try {
+            synchronized (lock) {
+                if (staging != null) {
+                    IRCMember staged = staging.get(probe);
+                    if (staged != null) {
+                        staging.replace(probe, staged.withMode(rank, set));
+                    }
+                }
+                IRCMember member = members.get(probe);
+                if (member == null) {
+                    return false;
+                }
+                IRCMember updated = member.withMode(rank, set);
+                if (updated != member) {
+                    // Keeps the existing key, so the probe is never stored
+                    members.replace(probe, updated);
+                }
+                return true;
+            }
+        } finally {
+            probe.clear();
+        }
+    }
+
+    /**
+     * Applies the modes of a MODE line or an RPL_CHANNELMODEIS reply, such as
+     * "+ov-v a b c", in one pass. Each mode takes its parameter, if any, from
+     * the parameters following the mode string in order. Membership modes
+     * update the members, list modes add or remove list entries and other
+     * modes set or clear a channel setting.
+     *
+     * @param message the message holding the modes
+     * @param index the index of the parameter holding the mode string
+     * @return the number of modes applied
+     */
+    public int applyModes(IRCMessage message, int index) {
+        String changes = message.getParam(index);
+        if (changes == null) {
+            return 0;
+        }
+        IRCSupport support = getSupport();
+        int count = message.getParamCount();
+        int parameter = index + 1;
+        int applied = 0;
+        boolean set = true;
+        for (int i = 0; i < changes.length(); i++) {
+            char mode = changes.charAt(i);
+            if (mode == '+' || mode == '-') {
+                set = mode == '+';
+                continue;
+            }
+
+            IRCModeType type = support.getModeType(mode);
+            if (type.takesParameter(set) && parameter >= count) {
+                // Malformed line; stop rather than misapply the rest
+                break;
+            }
+            if (type == IRCModeType.PREFIX) {
+                // Looked up in place, as mass modes are mostly ops and voices
+                setUserMode(message.getRaw(), message.paramStart(parameter), message.paramEnd(parameter), support.modeRank(mode), set);
+                parameter++;
+                applied++;
+                continue;
+            }
+            String value = type.takesParameter(set) ? message.getParam(parameter++) : null;
+            switch (type) {
+                case LIST:
+                    if (set) {
+                        addListEntry(mode, value);
+                    } else {
+                        removeListEntry(mode, value);
+                    }
+                    break;
+                default:
+                    if (set) {
+                        modes.put(mode, value == null ? "" : value);
+                    } else {
+                        modes.remove(mode);
+                    }
+                    break;
+            }
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Returns true if a channel setting or flag is set
+     *
+     * @param mode the mode letter, such as 'n'
+     * @return true if the mode is set
+     */
+    public boolean hasMode(char mode) {
+        return modes.containsKey(mode);
+    }
+
+    /**
+     * Returns the parameter of a channel setting, such as the key of +k
+     *
+     * @param mode the mode letter
+     * @return the parameter, "" for a flag, or null if the mode is not set
+     */
+    public String getModeParameter(char mode) {
+        return modes.get(mode);
+    }
+
+    /**
+     * Returns the channel settings and flags as a mode string with their
+     * parameters, such as "+klnt key 10". List and membership modes are not
+     * included.
+     *
+     * @return the mode string, or "+" if no mode is known to be set
+     */
+    public String getModeString() {
+        StringBuilder letters = new StringBuilder("+");
+        StringBuilder parameters = new StringBuilder();
+        for (Map.Entry<Character, String> entry : modes.entrySet()) {
+            letters.append(entry.getKey());
+            if (!entry.getValue().isEmpty()) {
+                parameters.append(' ').append(entry.getValue());
+            }
+        }
+        return letters.append(parameters).toString();
+    }
+
+    /**
+     * Returns the entries of a list mode
+     *
+     * @param mode the list mode letter, such as 'b'
+     * @return an unmodifiable view of the entries
+     */
+    public Set<String> getList(char mode) {
+        Set<String> list = lists.get(mode);
+        return list == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(list);
+    }
+
+    /**
+     * Returns the channel's ban list
+     *
+     * @return an unmodifiable view of the ban masks
+     */
+    public Set<String> getBans() {
+        return getList('b');
+    }
+
+    /**
+     * Adds an entry to a list mode
+     *
+     * @param mode the list mode letter, such as 'b'
+     * @param entry the entry, such as a ban mask
+     */
+    public void addListEntry(char mode, String entry) {
+        synchronized (lock) {
+            list(lists, mode).add(entry);
+            if (listStaging != null && listStaging.containsKey(mode)) {
+                listStaging.get(mode).add(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from a list mode
+     *
+     * @param mode the list mode letter, such as 'b'
+     * @param entry the entry, such as a ban mask
+     */
+    public void removeListEntry(char mode, String entry) {
+        synchronized (lock) {
+            Set<String> list = lists.get(mode);
+            if (list != null) {
+                list.remove(entry);
+            }
+            if (listStaging != null && listStaging.containsKey(mode)) {
+                listStaging.get(mode).remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Adds an entry of a list reply, such as RPL_BANLIST, to the staging
+     * list. The entries replace the list once commitList is called.
+     *
+     * @param mode the list mode letter
+     * @param entry the entry
+     */
+    public void stageListEntry(char mode, String entry) {
+        synchronized (lock) {
+            if (listStaging == null) {
+                listStaging = new HashMap<>();
+            }
+            list(listStaging, mode).add(entry);
+        }
+    }
+
+    /**
+     * Replaces a list with its staged entries, as on RPL_ENDOFBANLIST. If
+     * nothing was staged the list is emptied.
+     *
+     * @param mode the list mode letter
+     */
+    public void commitList(char mode) {
+        synchronized (lock) {
+            Set<String> staged = listStaging == null ? null : listStaging.remove(mode);
+            if (staged == null) {
+                lists.remove(mode);
+            } else {
+                lists.put(mode, staged);
+            }
+        }
+    }
+
+    private static Set<String> list(Map<Character, Set<String>> lists, char mode) {
+        Set<String> list = lists.get(mode);
+        if (list == null) {
+            list = ConcurrentHashMap.newKeySet();
+            lists.put(mode, list);
+        }
+        return list;
+    }
+
+    /**
+     * Removes every member, such as when leaving the channel
+     */
+    public void clearUsers() {
+        synchronized (lock) {
+            Map<IRCCaseKey, IRCMember> all = members;
+            members = new ConcurrentHashMap<>();
+            staging = null;
+            if (server != null) {
+                for (IRCMember member : all.values()) {
+                    server.untrackUser(member.getNick(), this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-keys the members under a new case mapping
+     */
+    void setCaseMapping(IRCCaseMapping mapping) {
+        synchronized (lock) {
+            if (mapping == this.mapping) {
                 return;
             }
+            this.mapping = mapping;
+            members = rekey(members, mapping);
+            if (staging != null) {
+                staging = rekey(staging, mapping);
+            }
+        }
+    }
+
+    private static Map<IRCCaseKey, IRCMember> rekey(Map<IRCCaseKey, IRCMember> map, IRCCaseMapping mapping) {
+        Map<IRCCaseKey, IRCMember> result = new ConcurrentHashMap<>();
+        for (IRCMember member : map.values()) {
+            result.put(IRCCaseKey.of(member.getNick(), mapping), member);
         }
+        return result;
     }
 
     /**
@@ -180,6 +693,6 @@ public class IRCChannel {
 
     @Override
     public String toString() {
-        return "[" + name + " (" + users.size() + ")]";
+        return "[" + name + " (" + members.size() + ")]";
     }
 }
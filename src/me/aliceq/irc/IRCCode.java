@@ -35,6 +35,7 @@ public abstract class IRCCode {
     public static final int RPL_CREATED = 003;
     public static final int RPL_MYINFO = 004;
     public static final int RPL_BOUNCE = 005;
+    public static final int RPL_ISUPPORT = 005;
 
     public static final int RPL_USERHOST = 302;
     public static final int RPL_ISON = 303;
@@ -48,6 +49,14 @@ public abstract class IRCCode {
     public static final int RPL_WHOISIDLE = 317;
     public static final int RPL_ENDOFWHOIS = 318;
     public static final int RPL_WHOISCHANNELS = 319;
+    public static final int RPL_WHOISREGNICK = 307;
+    public static final int RPL_WHOISSPECIAL = 320;
+    public static final int RPL_WHOISACCOUNT = 330;
+    public static final int RPL_WHOISACTUALLY = 338;
+    public static final int RPL_WHOISHOST = 378;
+    public static final int RPL_WHOISMODES = 379;
+    public static final int RPL_WHOISCERTFP = 276;
+    public static final int RPL_WHOISSECURE = 671;
     public static final int RPL_WHOWASUSER = 314;
     public static final int RPL_RPL_ENDOFWHOWAS = 369;
 
@@ -56,6 +65,7 @@ public abstract class IRCCode {
     public static final int RPL_LISTEND = 323;
     public static final int RPL_UNIQOPTS = 325;
     public static final int RPL_CHANNELMODEIS = 324;
+    public static final int RPL_CREATIONTIME = 329;
 
     public static final int RPL_NOTOPIC = 331;
     public static final int RPL_TOPIC = 332;
@@ -64,7 +74,7 @@ public abstract class IRCCode {
     public static final int RPL_SUMMONING = 342;
     public static final int RPL_INVITELIST = 346;
     public static final int RPL_ENDOFINVITELIST = 347;
-    public static final int RPL_EXCEPTLIST = 346;
+    public static final int RPL_EXCEPTLIST = 348;
     public static final int RPL_ENDOFEXCEPTLIST = 349;
 
     public static final int RPL_VERSION = 351;
@@ -73,6 +83,7 @@ public abstract class IRCCode {
 
     public static final int RPL_NAMREPLY = 353;
     public static final int RPL_ENDOFNAMES = 366;
+    public static final int RPL_WHOSPCRPL = 354;
 
     public static final int RPL_RPL_LINKS = 364;
     public static final int RPL_ENDOFLINKS = 365;
@@ -136,6 +147,7 @@ public abstract class IRCCode {
     public static final int ERR_NOSUCHCHANNEL = 403;
     public static final int ERR_CANNOTSENDTOCHAN = 404;
     public static final int ERR_TOOMANYCHANNELS = 405;
+    public static final int ERR_TOOMANYMATCHES = 416;
     
     public static final int ERR_WASNOSUCHNICK = 406;
     public static final int ERR_NOSUCHSERVICE = 408;
@@ -211,4 +223,16 @@ public abstract class IRCCode {
     public static final int RPL_STATSDLINE = 250;
 
     public static final int ERR_NOSERVICEHOST = 492;
+
+    // IRCv3 capability negotiation and SASL
+    public static final int ERR_INVALIDCAPCMD = 410;
+    public static final int RPL_LOGGEDIN = 900;
+    public static final int RPL_LOGGEDOUT = 901;
+    public static final int ERR_NICKLOCKED = 902;
+    public static final int RPL_SASLSUCCESS = 903;
+    public static final int ERR_SASLFAIL = 904;
+    public static final int ERR_SASLTOOLONG = 905;
+    public static final int ERR_SASLABORTED = 906;
+    public static final int ERR_SASLALREADY = 907;
+    public static final int RPL_SASLMECHS = 908;
 }
@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * State of a server connection. A server moves from CONNECTING through
+ * REGISTERING to READY, goes through RECONNECTING and back to REGISTERING
+ * whenever the connection is lost and re-established, and ends in CLOSED once
+ * it quits or gives up reconnecting.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public enum IRCConnectionState {
+
+    /**
+     * The socket is open but registration has not started
+     */
+    CONNECTING,
+    /**
+     * The registration lines were sent and the server has not welcomed us yet
+     */
+    REGISTERING,
+    /**
+     * The server welcomed us with RPL_WELCOME; commands may be sent
+     */
+    READY,
+    /**
+     * The connection was lost and a reconnect is scheduled or under way
+     */
+    RECONNECTING,
+    /**
+     * The connection was closed by quitting, or lost with no reconnect left
+     */
+    CLOSED
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import me.aliceq.irc.internal.IRCLineFramer;
+import me.aliceq.irc.internal.IRCOutbound;
+import me.aliceq.irc.internal.IRCSocket;
+
+/**
+ * Selector-based reader which multiplexes any number of server connections
+ * over a small, fixed number of threads. Servers opt into it through
+ * IRCServer.start(IRCEventLoop) instead of spawning their own reader thread.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCEventLoop {
+
+    private static final ThreadLocal<Boolean> selectorThread = new ThreadLocal<>();
+
+    // Consecutive select() failures after which a selector is given up on,
+    // and the initial delay between attempts
+    private static final int SELECT_RETRIES = 5;
+    private static final long SELECT_BACKOFF = 10;
+
+    private final Worker[] workers;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    /**
+     * Basic constructor using a single selector thread
+     */
+    public IRCEventLoop() {
+        this(1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threads the number of selector threads to spread connections over
+     * @throws IRCException if a selector can not be opened
+     */
+    public IRCEventLoop(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Event loop requires at least one thread");
+        }
+
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            try {
+                workers[i] = new Worker(Selector.open());
+            } catch (IOException e) {
+                throw new IRCException(e);
+            }
+
+            Thread thread = new Thread(workers[i], "IRCEventLoop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns true if the calling thread is a selector thread of any event
+     * loop. Work done on such a thread must never block, since it reads for
+     * every connection registered with it.
+     *
+     * @return true if called from a selector thread
+     */
+    public static boolean isSelectorThread() {
+        return selectorThread.get() != null;
+    }
+
+    /**
+     * Returns the number of selector threads
+     *
+     * @return the number of selector threads
+     */
+    public int threadCount() {
+        return workers.length;
+    }
+
+    /**
+     * Returns the number of connections currently registered
+     *
+     * @return the number of connections currently registered
+     */
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Stops all selector threads and closes every registered connection. The
+     * servers of those connections are told the connection was lost, and do
+     * not reconnect through this loop.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker : workers) {
+            worker.running = false;
+            worker.selector.wakeup();
+        }
+    }
+
+    /**
+     * Returns true once shutdown has been called
+     *
+     * @return true if the loop was shut down
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Registers a connected channel with one of the selector threads. Lines
+     * are framed in place and handed to the server on the selector thread.
+     * The connection is counted until either side closes it.
+     *
+     * @param server the server to dispatch lines to
+     * @param socket the socket to read from, created from a channel
+     * @return a sink which queues batches for writing on the selector thread
+     * @throws IOException if the channel can not be made non-blocking, or no
+     * selector thread is running
+     */
+    IRCOutbound.Sink register(IRCServer server, IRCSocket socket) throws IOException {
+        Worker worker = null;
+        for (int i = 0; i < workers.length && worker == null; i++) {
+            Worker candidate = workers[Math.abs(next.getAndIncrement() % workers.length)];
+            if (candidate.running) {
+                worker = candidate;
+            }
+        }
+        if (worker == null) {
+            throw new IOException("Event loop is not running");
+        }
+
+        socket.getChannel().configureBlocking(false);
+
+        final Connection connection = new Connection(worker, server, socket);
+        connections.incrementAndGet();
+        socket.setCloseHandler(new Runnable() {
+            @Override
+            public void run() {
+                // Closing the channel has already cancelled its key
+                connection.release();
+            }
+        });
+        worker.pending.add(connection);
+        worker.selector.wakeup();
+
+        return new ConnectionSink(connection);
+    }
+
+    /**
+     * Single selector thread and the connections it owns
+     */
+    private final class Worker implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        private Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            selectorThread.set(Boolean.TRUE);
+            IOException failure = null;
+            int failures = 0;
+            while (running) {
+                try {
+                    selector.select();
+                    failures = 0;
+                } catch (IOException e) {
+                    // Retrying at once would spin; back off, and give up on
+                    // a selector which keeps failing so its connections can
+                    // reconnect through another one
+                    if (++failures >= SELECT_RETRIES) {
+                        failure = e;
+                        break;
+                    }
+                    try {
+                        Thread.sleep(SELECT_BACKOFF << failures);
+                    } catch (InterruptedException ex) {
+                        failure = e;
+                        break;
+                    }
+                    continue;
+                }
+
+                // Registrations and write interest changes from other threads
+                for (Connection c = pending.poll(); c != null; c = pending.poll()) {
+                    c.update();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close(e);
+                    }
+                }
+            }
+            running = false;
+
+            // Close everything still registered or waiting to be, and report
+            // the loss so that servers do not go on as if still connected
+            IOException cause = failure == null
+                    ? new IOException("Event loop shut down")
+                    : new IOException("Selector failed: " + failure.getMessage(), failure);
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close(cause);
+            }
+            for (Connection c = pending.poll(); c != null; c = pending.poll()) {
+                c.close(cause);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Per-connection state. Only touched by its worker thread, save for the
+     * outgoing queue.
+     */
+    private final class Connection {
+
+        private final Worker worker;
+        private final IRCServer server;
+        private final IRCSocket socket;
+        private final SocketChannel channel;
+        private final IRCLineFramer framer = new IRCLineFramer();
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private SelectionKey key;
+
+        private Connection(Worker worker, IRCServer server, IRCSocket socket) {
+            this.worker = worker;
+            this.server = server;
+            this.socket = socket;
+            this.channel = socket.getChannel();
+        }
+
+        /**
+         * Registers the connection or refreshes its interest set
+         */
+        private void update() {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                if (key == null) {
+                    key = channel.register(worker.selector, SelectionKey.OP_READ, this);
+                }
+                if (key.isValid()) {
+                    key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (ClosedChannelException | CancelledKeyException e) {
+                close(e);
+            }
+        }
+
+        /**
+         * Reads whatever is available and dispatches every complete line
+         */
+        private void read() throws IOException {
+            if (framer.read(channel, server.lineHandler) < 0) {
+                throw new IOException("Connection closed by remote host");
+            }
+        }
+
+        /**
+         * Writes as much of the outgoing queue as the socket accepts, gathering
+         * every queued batch into a single write
+         */
+        private void write() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer[] batch = out.toArray(new ByteBuffer[0]);
+                channel.write(batch);
+                for (ByteBuffer buffer : batch) {
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    out.poll();
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Queues bytes for writing and wakes the selector thread
+         */
+        private void enqueue(ByteBuffer buffer) {
+            out.add(buffer);
+            worker.pending.add(this);
+            worker.selector.wakeup();
+        }
+
+        /**
+         * Stops counting the connection. Returns false if it had already
+         * been released, so that each close is only handled once.
+         */
+        private boolean release() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            connections.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Closes the connection from the selector thread, reporting the
+         * cause to the server unless the socket was already closed
+         */
+        private void close(Exception cause) {
+            if (!release()) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (cause != null) {
+                if (server.isVerbose(IRCServer.VERBOSITY_LOW)) {
+                    System.out.println(cause);
+                }
+                server.connectionLost(socket, cause.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sink which copies each batch and hands it to the selector thread
+     */
+    private final class ConnectionSink implements IRCOutbound.Sink {
+
+        private final Connection connection;
+
+        private ConnectionSink(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (!connection.channel.isOpen()) {
+                throw new IOException("Connection is closed");
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(buffer, offset, length);
+            copy.flip();
+            connection.enqueue(copy);
+        }
+    }
+}
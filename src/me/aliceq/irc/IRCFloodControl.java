@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * Outgoing flood control settings. Servers penalise every line received from
+ * a client and disconnect clients whose penalty runs too far ahead of real
+ * time. This mirrors that accounting on the client: each line moves a penalty
+ * clock forward, and lines are held back whenever writing them would put the
+ * clock further ahead than the window allows. Instances are immutable.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCFloodControl {
+
+    /**
+     * The classic ircd penalty: 2 seconds per line plus 1 second per 120
+     * bytes, with 10 seconds of allowance. This allows a burst of about five
+     * lines and then one line every two seconds.
+     */
+    public static final IRCFloodControl DEFAULT = new IRCFloodControl(10000, 2000, 120);
+    /**
+     * No flood control; lines are written as fast as the socket accepts them
+     */
+    public static final IRCFloodControl UNLIMITED = new IRCFloodControl(0, 0, 0);
+
+    private final long window;
+    private final long linePenalty;
+    private final int penaltyBytes;
+
+    /**
+     * Constructor
+     *
+     * @param window how far, in milliseconds, the penalty clock may run ahead
+     * of real time
+     * @param linePenalty penalty in milliseconds charged for every line
+     * @param penaltyBytes an extra second is charged for every full
+     * penaltyBytes bytes of a line. A value of 0 ignores line length.
+     */
+    public IRCFloodControl(long window, long linePenalty, int penaltyBytes) {
+        if (window < 0 || linePenalty < 0 || penaltyBytes < 0) {
+            throw new IllegalArgumentException("Flood control settings may not be negative");
+        }
+        this.window = window;
+        this.linePenalty = linePenalty;
+        this.penaltyBytes = penaltyBytes;
+    }
+
+    /**
+     * Returns how far the penalty clock may run ahead of real time
+     *
+     * @return the window in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Returns the penalty charged for every line
+     *
+     * @return the line penalty in milliseconds
+     */
+    public long getLinePenalty() {
+        return linePenalty;
+    }
+
+    /**
+     * Returns the number of bytes for which an extra second is charged
+     *
+     * @return the number of bytes, or 0 if line length is ignored
+     */
+    public int getPenaltyBytes() {
+        return penaltyBytes;
+    }
+
+    /**
+     * Returns true if these settings hold back any line
+     *
+     * @return false if lines are never held back
+     */
+    public boolean isLimited() {
+        return linePenalty > 0 || penaltyBytes > 0;
+    }
+
+    /**
+     * Returns the penalty charged for a line
+     *
+     * @param length the length of the line in bytes, without its terminator
+     * @return the penalty in milliseconds
+     */
+    public long penalty(int length) {
+        return linePenalty + (penaltyBytes > 0 ? (length / penaltyBytes) * 1000L : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "IRCFloodControl{window=" + window + ", linePenalty=" + linePenalty + ", penaltyBytes=" + penaltyBytes + "}";
+    }
+}
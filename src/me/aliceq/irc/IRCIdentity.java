@@ -23,7 +23,9 @@
  */
 package me.aliceq.irc;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.List;
 
@@ -42,6 +44,11 @@ public class IRCIdentity {
     private boolean invisible = false;
     private boolean wallops = false;
 
+    // SASL mechanism, PLAIN or EXTERNAL, or null to not use SASL
+    private String saslMechanism = null;
+    private String saslAccount = null;
+    private String saslPassword = null;
+
     // Constructors
     public IRCIdentity(String username) {
         this(username, username, username, "");
@@ -88,6 +95,20 @@ public class IRCIdentity {
         this.wallops = wallops;
     }
 
+    // Authenticates with SASL PLAIN during registration instead of NickServ
+    public void setSaslPlain(String account, String password) {
+        this.saslMechanism = "PLAIN";
+        this.saslAccount = account;
+        this.saslPassword = password;
+    }
+
+    // Authenticates with SASL EXTERNAL, using the TLS client certificate
+    public void setSaslExternal() {
+        this.saslMechanism = "EXTERNAL";
+        this.saslAccount = null;
+        this.saslPassword = null;
+    }
+
     // Accessors
     public int nickCount() {
         return nicknames.size();
@@ -125,6 +146,19 @@ public class IRCIdentity {
         return password;
     }
 
+    public String saslMechanism() {
+        return saslMechanism;
+    }
+
+    // The AUTHENTICATE response, base64 encoded, or + for an empty one
+    String saslResponse() {
+        if (!"PLAIN".equals(saslMechanism)) {
+            return "+";
+        }
+        String plain = saslAccount + '\0' + saslAccount + '\0' + saslPassword;
+        return Base64.getEncoder().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
     // Extras
     public int getMode() {
         int mask = 0;
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of round-trip times with power-of-two millisecond buckets. Bucket
+ * 0 counts samples under 1ms, and bucket i counts samples from 2^(i-1) up to
+ * 2^i milliseconds; the last bucket also counts everything slower. Samples
+ * are recorded without locking.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCLatencyHistogram {
+
+    /**
+     * Number of buckets. The last bucket starts at 2^16ms, about a minute.
+     */
+    public static final int BUCKETS = 18;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private volatile long last = -1;
+
+    /**
+     * Records a single round trip
+     *
+     * @param nanos the round-trip time in nanoseconds
+     */
+    public void record(long nanos) {
+        long millis = Math.max(0, nanos / 1000000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        buckets.incrementAndGet(bucket);
+        total.addAndGet(nanos);
+        count.incrementAndGet();
+        last = nanos;
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded round trips
+     *
+     * @return the number of samples
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the most recent round-trip time
+     *
+     * @return the latest sample in milliseconds, or -1 if there is none
+     */
+    public double getLast() {
+        long value = last;
+        return value < 0 ? -1 : value / 1e6;
+    }
+
+    /**
+     * Returns the mean round-trip time
+     *
+     * @return the mean in milliseconds, or 0 if there are no samples
+     */
+    public double getMean() {
+        long samples = count.get();
+        return samples == 0 ? 0 : total.get() / (samples * 1e6);
+    }
+
+    /**
+     * Returns the slowest round-trip time
+     *
+     * @return the maximum in milliseconds
+     */
+    public double getMax() {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * Returns an upper bound for a percentile, which is the upper edge of the
+     * bucket the percentile falls in
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound in milliseconds, or 0 if there are no samples
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBuckets();
+        long samples = 0;
+        for (long c : counts) {
+            samples += c;
+        }
+        if (samples == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(samples * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return bucketLimit(i);
+            }
+        }
+        return bucketLimit(BUCKETS - 1);
+    }
+
+    /**
+     * Returns a copy of the bucket counts
+     *
+     * @return the number of samples in each bucket
+     */
+    public long[] getBuckets() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = buckets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the exclusive upper edge of a bucket
+     *
+     * @param bucket the bucket index
+     * @return the upper edge in milliseconds, or Long.MAX_VALUE for the last
+     * bucket
+     */
+    public static long bucketLimit(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IRCLatencyHistogram{count=%d, mean=%.1fms, p50<%dms, p99<%dms, max=%.1fms}",
+                getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * A user's membership in a channel: their nickname and membership modes.
+ * Modes are kept as a bitset in which bit i is the membership mode of rank i
+ * in the server's PREFIX, so bit 0 is the highest rank. Instances are
+ * immutable; a change of nickname or modes replaces the member.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCMember {
+
+    private final String nick;
+    private final int modes;
+    private final String symbols;
+
+    /**
+     * Constructor
+     *
+     * @param nick the member's nickname
+     * @param modes the membership mode bitset
+     * @param symbols the prefix symbols of the server, highest rank first
+     */
+    public IRCMember(String nick, int modes, String symbols) {
+        this.nick = nick;
+        this.modes = modes;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Returns the member's nickname
+     *
+     * @return the nickname
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * Returns the membership mode bitset
+     *
+     * @return the modes, with bit i set for the mode of rank i
+     */
+    public int getModes() {
+        return modes;
+    }
+
+    /**
+     * Returns true if the member has the membership mode of a rank
+     *
+     * @param rank the rank of the mode, as returned by IRCSupport.modeRank
+     * @return true if the mode is set
+     */
+    public boolean hasMode(int rank) {
+        return rank >= 0 && rank < 32 && (modes & (1 << rank)) != 0;
+    }
+
+    /**
+     * Returns the prefix symbol of the member's highest membership mode
+     *
+     * @return the symbol, or "" if the member has no membership mode
+     */
+    public String getPrefix() {
+        int rank = Integer.numberOfTrailingZeros(modes);
+        return rank < symbols.length() ? symbols.substring(rank, rank + 1) : "";
+    }
+
+    /**
+     * Returns a member with the same modes under a new nickname
+     *
+     * @param nick the new nickname
+     * @return the renamed member
+     */
+    public IRCMember withNick(String nick) {
+        return new IRCMember(nick, modes, symbols);
+    }
+
+    /**
+     * Returns a member with a membership mode set or cleared
+     *
+     * @param rank the rank of the mode
+     * @param set true to set the mode, false to clear it
+     * @return the updated member, or this one if nothing changed
+     */
+    public IRCMember withMode(int rank, boolean set) {
+        if (rank < 0 || rank >= 32) {
+            return this;
+        }
+        int updated = set ? modes | (1 << rank) : modes & ~(1 << rank);
+        return updated == modes ? this : new IRCMember(nick, updated, symbols);
+    }
+
+    /**
+     * Returns the nickname with the prefix of the highest membership mode, as
+     * shown in NAMES replies
+     *
+     * @return the prefixed nickname
+     */
+    @Override
+    public String toString() {
+        return modes == 0 ? nick : getPrefix() + nick;
+    }
+}
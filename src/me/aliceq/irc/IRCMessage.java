@@ -24,21 +24,57 @@
 package me.aliceq.irc;
 
 import java.text.DateFormat;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
- * IRC message container
+ * IRC message container. Only the boundaries of the tags, sender, type,
+ * receiver and message are located when parsing; the strings themselves and the
+ * timestamp are created the first time they are requested and then cached.
+ * Listeners which only compare against a value should use the *Equals methods,
+ * which never allocate.
  *
  * @author Alice Quiros <email@aliceq.me>
  */
 public class IRCMessage {
 
+    /**
+     * Maximum number of parameters a message may carry
+     */
+    public static final int MAX_PARAMS = 15;
+
     private String raw;
+    private long received;
+    private volatile long timestamp = -1;
+
+    // Token boundaries within raw
+    private int tagsEnd;
+    private int senderStart;
+    private int senderEnd;
+    private int bang = -2;
+    private int typeStart;
+    private int typeEnd;
+    private int paramsStart;
+    private int receiverStart;
+    private int receiverEnd;
+    private int messageStart;
+    private int code = -1;
+
+    // Decoded on demand. A message is read by several threads at once, so
+    // every value is computed into a local and published with one write;
+    // values which are not immutable are volatile.
+    private volatile int[] params;
     private String sender;
+    private String nick;
+    private String host;
     private String type;
     private String receiver;
     private String message;
-    private Date time;
+    private volatile Date time;
+    private IRCMessageTags tags;
+
+    // Features of the server the message came from, set on receipt
+    IRCSupport support = IRCSupport.EMPTY;
 
     protected IRCMessage() {
 
@@ -59,6 +95,9 @@ public class IRCMessage {
      * @return
      */
     public String getSenderFull() {
+        if (sender == null) {
+            sender = raw.substring(senderStart, senderEnd);
+        }
         return sender;
     }
 
@@ -68,12 +107,11 @@ public class IRCMessage {
      * @return
      */
     public String getSender() {
-        int i = sender.indexOf('!');
-        if (i < 0) {
-            return sender;
-        } else {
-            return sender.substring(0, i);
+        if (nick == null) {
+            int i = bang();
+            nick = i < 0 ? getSenderFull() : raw.substring(senderStart, i);
         }
+        return nick;
     }
 
     /**
@@ -83,12 +121,11 @@ public class IRCMessage {
      * @return
      */
     public String getHostMask() {
-        int i = sender.indexOf('!');
-        if (i < 0) {
-            return "";
-        } else {
-            return sender.substring(i + 1, sender.length() - 1);
+        if (host == null) {
+            int i = bang();
+            host = i < 0 ? "" : raw.substring(i + 1, senderEnd);
         }
+        return host;
     }
 
     /**
@@ -97,6 +134,9 @@ public class IRCMessage {
      * @return
      */
     public String getReceiver() {
+        if (receiver == null) {
+            receiver = raw.substring(receiverStart, receiverEnd);
+        }
         return receiver;
     }
 
@@ -106,6 +146,9 @@ public class IRCMessage {
      * @return
      */
     public String getType() {
+        if (type == null) {
+            type = raw.substring(typeStart, typeEnd);
+        }
         return type;
     }
 
@@ -116,11 +159,7 @@ public class IRCMessage {
      * @return
      */
     public int getMode() {
-        if (type.matches("[0-9]*")) {
-            return Integer.parseInt(type);
-        } else {
-            return -1;
-        }
+        return code;
     }
 
     /**
@@ -129,7 +168,49 @@ public class IRCMessage {
      * @return true if the message type is numeric
      */
     public boolean numericType() {
-        return type.matches("[0-9]*");
+        return code >= 0;
+    }
+
+    /**
+     * Returns the number of parameters following the type, including the
+     * trailing parameter
+     *
+     * @return the number of parameters
+     */
+    public int getParamCount() {
+        return offsets().length / 2;
+    }
+
+    /**
+     * Returns a single parameter. The receiver is parameter 0.
+     *
+     * @param index the index of the parameter
+     * @return the parameter, or null if there are not enough parameters
+     */
+    public String getParam(int index) {
+        if (index == 0 && receiverEnd > receiverStart) {
+            return getReceiver();
+        }
+        int[] offsets = offsets();
+        if (index < 0 || index * 2 >= offsets.length) {
+            return null;
+        }
+        return raw.substring(offsets[index * 2], offsets[index * 2 + 1]);
+    }
+
+    /**
+     * Returns every parameter following the type, in order. The trailing
+     * parameter is included without its leading colon.
+     *
+     * @return an array of parameters
+     */
+    public String[] getParams() {
+        int[] offsets = offsets();
+        String[] result = new String[offsets.length / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = raw.substring(offsets[i * 2], offsets[i * 2 + 1]);
+        }
+        return result;
     }
 
     /**
@@ -138,7 +219,7 @@ public class IRCMessage {
      * @return
      */
     public String getDestination() {
-        return receiver;
+        return getReceiver();
     }
 
     /**
@@ -147,6 +228,9 @@ public class IRCMessage {
      * @return
      */
     public String getMessage() {
+        if (message == null) {
+            message = messageStart < 0 ? "" : raw.substring(messageStart);
+        }
         return message;
     }
 
@@ -157,16 +241,78 @@ public class IRCMessage {
      * @return
      */
     public String getMessageLower() {
-        return message.toLowerCase();
+        return getMessage().toLowerCase();
     }
 
     /**
-     * Returns the date/time the message was received
+     * Returns the date/time the message was sent according to the server's
+     * server-time tag, or the date/time it was received if there is none
      *
      * @return
      */
     public Date getDateTime() {
-        return time;
+        Date t = time;
+        if (t == null) {
+            t = new Date(getTimestamp());
+            time = t;
+        }
+        return t;
+    }
+
+    /**
+     * Returns the same time as getDateTime() in milliseconds since the epoch
+     *
+     * @return the time the message was sent or received
+     */
+    public long getTimestamp() {
+        long value = timestamp;
+        if (value < 0) {
+            // Scan the raw tags for the last time= rather than parsing them all
+            int start = -1;
+            int end = -1;
+            int i = 1;
+            while (i < tagsEnd) {
+                int separator = raw.indexOf(';', i);
+                if (separator < 0 || separator > tagsEnd) {
+                    separator = tagsEnd;
+                }
+                if (raw.startsWith("time=", i) && separator >= i + 5) {
+                    start = i + 5;
+                    end = separator;
+                }
+                i = separator + 1;
+            }
+            value = start < 0 ? -1 : parseServerTime(raw, start, end);
+            if (value < 0) {
+                value = received;
+            }
+            timestamp = value;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the IRCv3 message tags. Messages without tags return an empty
+     * instance.
+     *
+     * @return the message tags
+     */
+    public IRCMessageTags getTags() {
+        if (tags == null) {
+            tags = tagsEnd > 0 ? IRCMessageTags.parse(raw, 1, tagsEnd) : IRCMessageTags.EMPTY;
+        }
+        return tags;
+    }
+
+    /**
+     * Returns the unescaped value of a single message tag
+     *
+     * @param key the key of the tag
+     * @return the value of the tag, an empty String if the tag has no value or
+     * null if the tag is not present
+     */
+    public String getTag(String key) {
+        return tagsEnd > 0 ? getTags().get(key) : null;
     }
 
     /**
@@ -176,7 +322,7 @@ public class IRCMessage {
      * @return
      */
     public boolean typeEquals(String value) {
-        return this.type.equalsIgnoreCase(value);
+        return regionEquals(typeStart, typeEnd, value);
     }
 
     /**
@@ -186,7 +332,8 @@ public class IRCMessage {
      * @return
      */
     public boolean senderEquals(String value) {
-        return this.getSender().equalsIgnoreCase(value);
+        int i = bang();
+        return senderEnd > senderStart && regionEquals(senderStart, i < 0 ? senderEnd : i, value);
     }
 
     /**
@@ -197,7 +344,7 @@ public class IRCMessage {
      * @return
      */
     public boolean fullSenderEquals(String value) {
-        return this.sender.equalsIgnoreCase(value);
+        return regionEquals(senderStart, senderEnd, value);
     }
 
     /**
@@ -207,7 +354,8 @@ public class IRCMessage {
      * @return
      */
     public boolean hostEquals(String value) {
-        return this.getHostMask().equalsIgnoreCase(value);
+        int i = bang();
+        return i < 0 ? value.isEmpty() : regionEquals(i + 1, senderEnd, value);
     }
 
     /**
@@ -217,62 +365,323 @@ public class IRCMessage {
      * @return
      */
     public boolean receiverEquals(String value) {
-        return this.receiver.equalsIgnoreCase(value);
+        return regionEquals(receiverStart, receiverEnd, value);
     }
 
     /**
      * Returns true if the message was sent to a channel. That is, the receiver
-     * is of the format #*
+     * starts with one of the server's CHANTYPES, which are # and & until the
+     * server advertises otherwise.
      *
      * @return true if the message was sent to a channel
      */
     public boolean channelReceiver() {
-        return this.receiver.charAt(0) == '#';
+        return receiverEnd > receiverStart && support.isChannelType(raw.charAt(receiverStart));
+    }
+
+    /**
+     * Returns true if the sender's nick equals the value under a case mapping
+     */
+    boolean senderEquals(String value, IRCCaseMapping mapping) {
+        int i = bang();
+        return senderEnd > senderStart && regionEquals(senderStart, i < 0 ? senderEnd : i, value, mapping);
+    }
+
+    /**
+     * Returns true if the receiver equals the value under a case mapping
+     */
+    boolean receiverEquals(String value, IRCCaseMapping mapping) {
+        return regionEquals(receiverStart, receiverEnd, value, mapping);
+    }
+
+    /**
+     * Returns the index in the raw message where the sender starts
+     */
+    int senderStart() {
+        return senderStart;
+    }
+
+    /**
+     * Returns the index in the raw message where the sender's nick ends,
+     * which is the start when there is no sender
+     */
+    int senderNickEnd() {
+        int i = bang();
+        return i < 0 ? senderEnd : i;
+    }
+
+    /**
+     * Returns the index in the raw message where the type starts
+     */
+    int typeStart() {
+        return typeStart;
+    }
+
+    /**
+     * Returns the index in the raw message where the type ends
+     */
+    int typeEnd() {
+        return typeEnd;
+    }
+
+    /**
+     * Returns the index in the raw message where the receiver starts
+     */
+    int receiverStart() {
+        return receiverStart;
+    }
+
+    /**
+     * Returns the index in the raw message where the receiver ends
+     */
+    int receiverEnd() {
+        return receiverEnd;
+    }
+
+    /**
+     * Returns the index in the raw message where a parameter starts. The
+     * parameter must exist.
+     */
+    int paramStart(int index) {
+        return offsets()[index * 2];
+    }
+
+    /**
+     * Returns the index in the raw message where a parameter ends. The
+     * parameter must exist.
+     */
+    int paramEnd(int index) {
+        return offsets()[index * 2 + 1];
+    }
+
+    /**
+     * Returns the index of the '!' separating the nick from the host mask, or
+     * -1 if the sender has no host mask
+     */
+    private int bang() {
+        if (bang == -2) {
+            int i = senderStart;
+            while (i < senderEnd && raw.charAt(i) != '!') {
+                i++;
+            }
+            bang = i < senderEnd ? i : -1;
+        }
+        return bang;
+    }
+
+    /**
+     * Compares a region of the raw message to a value, ignoring case
+     */
+    private boolean regionEquals(int start, int end, String value) {
+        return end - start == value.length() && raw.regionMatches(true, start, value, 0, end - start);
+    }
+
+    /**
+     * Compares a region of the raw message to a value under a case mapping
+     */
+    private boolean regionEquals(int start, int end, String value, IRCCaseMapping mapping) {
+        return end - start == value.length() && mapping.regionEquals(raw, start, value, 0, end - start);
+    }
+
+    /**
+     * Returns the start and end of every parameter, locating them the first
+     * time one past the receiver is needed. Threads racing here compute the
+     * same offsets; each array is complete before it is published.
+     */
+    private int[] offsets() {
+        int[] offsets = params;
+        if (offsets == null) {
+            offsets = splitParams();
+            params = offsets;
+        }
+        return offsets;
+    }
+
+    /**
+     * Locates every parameter, returning an array of exactly two offsets per
+     * parameter
+     */
+    private int[] splitParams() {
+        int[] offsets = new int[MAX_PARAMS * 2];
+        int length = raw.length();
+        int i = paramsStart;
+        int count = 0;
+        while (count < MAX_PARAMS) {
+            i = skip(raw, i);
+            if (i >= length) {
+                break;
+            }
+            if (raw.charAt(i) == ':' || count == MAX_PARAMS - 1) {
+                // Trailing parameter takes the rest of the line
+                offsets[count * 2] = raw.charAt(i) == ':' ? i + 1 : i;
+                offsets[count * 2 + 1] = length;
+                count++;
+                break;
+            }
+            offsets[count * 2] = i;
+            i = next(raw, i, ' ');
+            offsets[count * 2 + 1] = i;
+            count++;
+        }
+        return count == MAX_PARAMS ? offsets : Arrays.copyOf(offsets, count * 2);
     }
 
     /**
      * Parses a raw string message into an IRCMessage container. The message is
-     * parsed using the format :[sender] [type] [receiver] :[message]
+     * parsed using the format @[tags] :[sender] [type] [receiver] :[message] in a
+     * single pass which stops after locating the start of the message. The
+     * message is every parameter after the receiver, with the trailing
+     * parameter's colon removed if it directly follows the receiver.
      *
      * @param raw the raw message to parse
      * @return a new IRCMessage instance
      */
     public static final IRCMessage parseFrom(String raw) {
-        // Tokenize into max 5 tokens
-        String[] tokens = raw.split("\\s+:?", 4);
-
         // Create new instance
         IRCMessage instance = new IRCMessage();
         instance.raw = raw;
-        instance.time = new Date();
+        instance.received = System.currentTimeMillis();
+
+        int length = raw.length();
+        int i = 0;
+
+        // Tags
+        if (length > 0 && raw.charAt(0) == '@') {
+            i = next(raw, 1, ' ');
+            instance.tagsEnd = i;
+            i = skip(raw, i);
+        }
+
         // Source
-        if (tokens.length > 0) {
-            instance.sender = tokens[0].substring(1).trim();
-        } else {
-            return instance;
+        if (i < length && raw.charAt(i) == ':') {
+            instance.senderStart = i + 1;
+            i = next(raw, i + 1, ' ');
+            instance.senderEnd = i;
         }
 
         // Type
-        if (tokens.length > 1) {
-            instance.type = tokens[1].trim();
-        } else {
-            return instance;
+        i = skip(raw, i);
+        int start = i;
+        i = next(raw, i, ' ');
+        instance.typeStart = start;
+        instance.typeEnd = i;
+        if (i - start == 3) {
+            int code = 0;
+            for (int j = start; j < i && code >= 0; j++) {
+                char c = raw.charAt(j);
+                code = (c >= '0' && c <= '9') ? code * 10 + (c - '0') : -1;
+            }
+            instance.code = code;
         }
 
         // Destination
-        if (tokens.length > 2) {
-            instance.receiver = tokens[2].trim();
-        } else {
+        i = skip(raw, i);
+        instance.paramsStart = i;
+        if (i < length && raw.charAt(i) == ':') {
+            instance.receiverStart = i + 1;
+            instance.receiverEnd = length;
+            instance.messageStart = -1;
             return instance;
         }
+        instance.receiverStart = i;
+        i = next(raw, i, ' ');
+        instance.receiverEnd = i;
 
         // Message
-        if (tokens.length > 3) {
-            instance.message = tokens[3].trim();
+        i = skip(raw, i);
+        if (i >= length) {
+            instance.messageStart = -1;
+        } else {
+            instance.messageStart = raw.charAt(i) == ':' ? i + 1 : i;
         }
+
         return instance;
     }
 
+    /**
+     * Parses an IRCv3 server-time value of the form YYYY-MM-DDThh:mm:ss.sssZ
+     * without allocating
+     *
+     * @return milliseconds since the epoch, or -1 if the value is malformed
+     */
+    private static long parseServerTime(String raw, int start, int end) {
+        if (end - start < 20 || raw.charAt(end - 1) != 'Z') {
+            return -1;
+        }
+        int year = digits(raw, start, 4);
+        int month = digits(raw, start + 5, 2);
+        int day = digits(raw, start + 8, 2);
+        int hour = digits(raw, start + 11, 2);
+        int minute = digits(raw, start + 14, 2);
+        int second = digits(raw, start + 17, 2);
+        if ((year | month | day | hour | minute | second) < 0 || month < 1 || month > 12) {
+            return -1;
+        }
+
+        // Fractional seconds, truncated to milliseconds
+        int millis = 0;
+        int i = start + 19;
+        if (raw.charAt(i) == '.') {
+            int scale = 100;
+            for (i++; i < end - 1; i++) {
+                char c = raw.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                millis += (c - '0') * scale;
+                scale /= 10;
+            }
+        } else if (i != end - 1) {
+            return -1;
+        }
+
+        // Days since the epoch from the civil date
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long days = era * 146097L + yoe * 365 + yoe / 4 - yoe / 100 + doy - 719468;
+
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+    }
+
+    /**
+     * Parses a fixed number of decimal digits, returning -1 if any character
+     * is not a digit
+     */
+    private static int digits(String raw, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = raw.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns the index of the next occurrence of a character, or the end of
+     * the string
+     */
+    private static int next(String raw, int from, char c) {
+        int i = raw.indexOf(c, from);
+        return i < 0 ? raw.length() : i;
+    }
+
+    /**
+     * Returns the index of the next non-space character, or the end of the
+     * string
+     */
+    private static int skip(String raw, int from) {
+        int length = raw.length();
+        while (from < length && raw.charAt(from) == ' ') {
+            from++;
+        }
+        return from;
+    }
+
     @Override
     public String toString() {
         return raw;
@@ -316,17 +725,17 @@ public class IRCMessage {
     public String toString(String format, DateFormat dateformat) {
         String s = format;
 
-        String user = sender == null ? "" : this.getSender();
-        String host = sender == null ? "" : this.getHostMask();
+        String user = this.getSender();
+        String host = this.getHostMask();
 
         s = s.replace("%F", user + (host.equals("") ? "" : "!" + host));
         s = s.replace("%S", user);
         s = s.replace("%H", host);
-        s = s.replace("%R", receiver == null ? "" : receiver);
-        s = s.replace("%T", type == null ? "" : type);
-        s = s.replace("%M", message == null ? "" : message);
-        s = s.replace("%W", raw == null ? "" : raw);
-        s = s.replace("%D", time == null ? "" : dateformat.format(time));
+        s = s.replace("%R", this.getReceiver());
+        s = s.replace("%T", this.getType());
+        s = s.replace("%M", this.getMessage());
+        s = s.replace("%W", raw);
+        s = s.replace("%D", dateformat.format(this.getDateTime()));
 
         return s;
     }
@@ -0,0 +1,261 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Listener built from simple criteria which the server can index. Requests
+ * using a filter are only checked against messages whose type, receiver or
+ * sender could match, rather than against every message received. Any extra
+ * condition can be supplied as a residual listener, which is only run once the
+ * indexed criteria match.
+ * <p>
+ * Filters are immutable; every modifier returns a new instance.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCMessageFilter implements IRCMessageListener {
+
+    /**
+     * Case mapping sender and receiver index keys fold under. It folds every
+     * character any other mapping folds, so names which are equal under the
+     * connection's own mapping always share a key, whatever CASEMAPPING the
+     * server advertises; check then compares them exactly.
+     */
+    public static final IRCCaseMapping INDEX_MAPPING = IRCCaseMapping.RFC1459;
+
+    private final String[] types;
+    private final String receiver;
+    private final String sender;
+    private final IRCMessageListener residual;
+
+    private IRCMessageFilter(String[] types, String receiver, String sender, IRCMessageListener residual) {
+        this.types = types;
+        this.receiver = receiver;
+        this.sender = sender;
+        this.residual = residual;
+    }
+
+    /**
+     * Creates a filter accepting messages of any of the specified types
+     *
+     * @param types the message types (commands or numerics) to accept
+     * @return a new filter
+     */
+    public static IRCMessageFilter type(String... types) {
+        String[] keys = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            keys[i] = types[i].toUpperCase(Locale.ROOT);
+        }
+        return new IRCMessageFilter(keys, null, null, null);
+    }
+
+    /**
+     * Creates a filter accepting messages of any of the specified numeric
+     * types
+     *
+     * @param codes the numeric codes to accept, see IRCCode
+     * @return a new filter
+     */
+    public static IRCMessageFilter code(int... codes) {
+        String[] keys = new String[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            keys[i] = String.format("%03d", codes[i]);
+        }
+        return new IRCMessageFilter(keys, null, null, null);
+    }
+
+    /**
+     * Creates a filter accepting messages sent to a receiver
+     *
+     * @param receiver the channel or nick the message must be sent to
+     * @return a new filter
+     */
+    public static IRCMessageFilter receiver(String receiver) {
+        return new IRCMessageFilter(null, receiver, null, null);
+    }
+
+    /**
+     * Creates a filter accepting messages from a sender
+     *
+     * @param sender the nick the message must be sent from
+     * @return a new filter
+     */
+    public static IRCMessageFilter sender(String sender) {
+        return new IRCMessageFilter(null, null, sender, null);
+    }
+
+    /**
+     * Returns a copy of this filter which also requires the receiver to match
+     *
+     * @param receiver the channel or nick the message must be sent to
+     * @return a new filter
+     */
+    public IRCMessageFilter withReceiver(String receiver) {
+        return new IRCMessageFilter(types, receiver, sender, residual);
+    }
+
+    /**
+     * Returns a copy of this filter which also requires the sender to match
+     *
+     * @param sender the nick the message must be sent from
+     * @return a new filter
+     */
+    public IRCMessageFilter withSender(String sender) {
+        return new IRCMessageFilter(types, receiver, sender, residual);
+    }
+
+    /**
+     * Returns a copy of this filter which also requires a listener to accept
+     * the message. The listener is only called for messages which already
+     * match every other criteria.
+     *
+     * @param listener the residual listener
+     * @return a new filter
+     */
+    public IRCMessageFilter and(IRCMessageListener listener) {
+        return new IRCMessageFilter(types, receiver, sender, listener);
+    }
+
+    /**
+     * Returns the accepted types in upper case, or null if any type matches
+     *
+     * @return the accepted types or null
+     */
+    public String[] getTypes() {
+        return types == null ? null : types.clone();
+    }
+
+    /**
+     * Returns the required receiver, or null if any receiver matches
+     *
+     * @return the required receiver or null
+     */
+    public String getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * Returns the required sender, or null if any sender matches
+     *
+     * @return the required sender or null
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    @Override
+    public boolean check(IRCMessage message) {
+        if (types != null) {
+            int i = 0;
+            while (i < types.length && !message.typeEquals(types[i])) {
+                i++;
+            }
+            if (i == types.length) {
+                return false;
+            }
+        }
+        IRCCaseMapping mapping = message.support.getCaseMapping();
+        if (receiver != null && !message.receiverEquals(receiver, mapping)) {
+            return false;
+        }
+        if (sender != null && !message.senderEquals(sender, mapping)) {
+            return false;
+        }
+        return residual == null || residual.check(message);
+    }
+
+    /**
+     * Returns the index key for a message type
+     *
+     * @param type the type
+     * @return the key, which ignores ASCII case
+     */
+    public static IRCCaseKey typeKey(String type) {
+        return IRCCaseKey.of(type, IRCCaseMapping.ASCII);
+    }
+
+    /**
+     * Returns the index key for a nick or channel name
+     *
+     * @param name the nick or channel
+     * @return the key, folded under INDEX_MAPPING
+     */
+    public static IRCCaseKey nameKey(String name) {
+        return IRCCaseKey.of(name, INDEX_MAPPING);
+    }
+
+    /**
+     * Looks up the entry keyed by a message's sender nick. The nick is hashed
+     * in place, without being copied.
+     *
+     * @param <V> the type of the entries
+     * @param index a map keyed by nameKey
+     * @param message the message
+     * @return the entry, or null if there is none or the message has no
+     * sender
+     */
+    public static <V> V getBySender(Map<IRCCaseKey, V> index, IRCMessage message) {
+        return get(index, message, message.senderStart(), message.senderNickEnd(), INDEX_MAPPING);
+    }
+
+    /**
+     * Looks up the entry keyed by a message's receiver, hashed in place
+     *
+     * @param <V> the type of the entries
+     * @param index a map keyed by nameKey
+     * @param message the message
+     * @return the entry, or null if there is none or the message has no
+     * receiver
+     */
+    public static <V> V getByReceiver(Map<IRCCaseKey, V> index, IRCMessage message) {
+        return get(index, message, message.receiverStart(), message.receiverEnd(), INDEX_MAPPING);
+    }
+
+    /**
+     * Looks up the entry keyed by a message's type, hashed in place
+     *
+     * @param <V> the type of the entries
+     * @param index a map keyed by typeKey
+     * @param message the message
+     * @return the entry, or null if there is none
+     */
+    public static <V> V getByType(Map<IRCCaseKey, V> index, IRCMessage message) {
+        return get(index, message, message.typeStart(), message.typeEnd(), IRCCaseMapping.ASCII);
+    }
+
+    private static <V> V get(Map<IRCCaseKey, V> index, IRCMessage message, int start, int end, IRCCaseMapping mapping) {
+        if (end <= start) {
+            return null;
+        }
+        IRCCaseKey probe = IRCCaseKey.probe(message.getRaw(), start, end, mapping);
+        try {
+            return index.get(probe);
+        } finally {
+            probe.clear();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * IRCv3 message tags attached to an IRCMessage. Tags are stored as packed
+ * offsets into the raw line; keys and values are only turned into strings, and
+ * values only unescaped, when they are requested.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCMessageTags {
+
+    /**
+     * Tags of a message which carried none
+     */
+    public static final IRCMessageTags EMPTY = new IRCMessageTags("", new int[0], 0);
+
+    private final String raw;
+    // Four entries per tag: key start, key end, value start, value end
+    private final int[] offsets;
+    private final int count;
+
+    private IRCMessageTags(String raw, int[] offsets, int count) {
+        this.raw = raw;
+        this.offsets = offsets;
+        this.count = count;
+    }
+
+    /**
+     * Returns the number of tags
+     *
+     * @return the number of tags
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns true if there are no tags
+     *
+     * @return true if there are no tags
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the key of a tag, including any client prefix or vendor
+     *
+     * @param index the index of the tag
+     * @return the key of the tag
+     */
+    public String getKey(int index) {
+        return raw.substring(offsets[index * 4], offsets[index * 4 + 1]);
+    }
+
+    /**
+     * Returns the unescaped value of a tag. Tags without a value return an
+     * empty String.
+     *
+     * @param index the index of the tag
+     * @return the value of the tag
+     */
+    public String getValue(int index) {
+        return unescape(offsets[index * 4 + 2], offsets[index * 4 + 3]);
+    }
+
+    /**
+     * Returns true if a tag with the specified key is present
+     *
+     * @param key the key to look for
+     * @return true if the tag is present
+     */
+    public boolean contains(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the unescaped value of the tag with the specified key
+     *
+     * @param key the key to look for
+     * @return the value of the tag, an empty String if the tag has no value or
+     * null if the tag is not present
+     */
+    public String get(String key) {
+        int i = indexOf(key);
+        return i < 0 ? null : getValue(i);
+    }
+
+    /**
+     * Returns the index of the tag with the specified key, or -1. If the key
+     * is repeated the last one wins, as IRCv3 specifies.
+     *
+     * @param key the key to look for
+     * @return the index of the tag or -1
+     */
+    public int indexOf(String key) {
+        for (int i = count - 1; i >= 0; i--) {
+            int start = offsets[i * 4];
+            int length = offsets[i * 4 + 1] - start;
+            if (length == key.length() && raw.regionMatches(start, key, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Unescapes a value, only allocating a builder when it contains escapes
+     */
+    private String unescape(int start, int end) {
+        int i = raw.indexOf('\\', start);
+        if (i < 0 || i >= end) {
+            return raw.substring(start, end);
+        }
+
+        StringBuilder builder = new StringBuilder(end - start);
+        builder.append(raw, start, i);
+        for (; i < end; i++) {
+            char c = raw.charAt(i);
+            if (c != '\\') {
+                builder.append(c);
+            } else if (++i < end) {
+                switch (c = raw.charAt(i)) {
+                    case ':':
+                        builder.append(';');
+                        break;
+                    case 's':
+                        builder.append(' ');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    default:
+                        builder.append(c);
+                        break;
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Locates every tag in the tag section of a raw message
+     *
+     * @param raw the raw message
+     * @param start the index after the leading '@'
+     * @param end the index of the space ending the tags
+     * @return the parsed tags
+     */
+    static IRCMessageTags parse(String raw, int start, int end) {
+        // Count separators first so the offsets are allocated exactly once
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (raw.charAt(i) == ';') {
+                count++;
+            }
+        }
+
+        int[] offsets = new int[count * 4];
+        int n = 0;
+        int i = start;
+        while (i < end) {
+            int separator = raw.indexOf(';', i);
+            if (separator < 0 || separator > end) {
+                separator = end;
+            }
+            if (separator > i) {
+                int equals = raw.indexOf('=', i);
+                if (equals < 0 || equals > separator) {
+                    equals = separator;
+                }
+                offsets[n * 4] = i;
+                offsets[n * 4 + 1] = equals;
+                offsets[n * 4 + 2] = Math.min(equals + 1, separator);
+                offsets[n * 4 + 3] = separator;
+                n++;
+            }
+            i = separator + 1;
+        }
+        return new IRCMessageTags(raw, offsets, n);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * How a channel mode takes its parameter, as advertised by the server's
+ * CHANMODES and PREFIX tokens
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public enum IRCModeType {
+
+    /**
+     * Membership modes from PREFIX, such as o and v. The parameter is a nick.
+     */
+    PREFIX,
+    /**
+     * Type A: modes which add or remove an entry of a list, such as bans. The
+     * parameter is always given.
+     */
+    LIST,
+    /**
+     * Type B: settings which take a parameter both when set and when unset,
+     * such as the key
+     */
+    PARAMETER,
+    /**
+     * Type C: settings which take a parameter only when set, such as the
+     * limit
+     */
+    SET_PARAMETER,
+    /**
+     * Type D: flags which never take a parameter
+     */
+    FLAG;
+
+    /**
+     * Returns true if a mode of this type consumes a parameter
+     *
+     * @param set true if the mode is being set, false if unset
+     * @return true if a parameter follows
+     */
+    public boolean takesParameter(boolean set) {
+        return this != FLAG && (set || this != SET_PARAMETER);
+    }
+}
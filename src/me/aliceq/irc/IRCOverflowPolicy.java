@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * What a full mailbox does with a newly dispatched message
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public enum IRCOverflowPolicy {
+
+    /**
+     * Block the reader until the subroutine makes room. Nothing is lost, but a
+     * slow subroutine stalls every other subscriber on the connection, so this
+     * is never a default and must be asked for. A selector thread of an
+     * IRCEventLoop is shared by many connections and is never parked: when
+     * the message is dispatched there, the oldest message is dropped instead.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest queued message to make room for the new one. This is
+     * the default.
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the new message
+     */
+    DROP_NEWEST
+}
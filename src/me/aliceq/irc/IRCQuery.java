@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+/**
+ * Describes a command whose answer is a series of numerics ending with an end
+ * numeric, such as WHOIS or LIST. Replies are matched to the oldest pending
+ * query which accepts their numeric and, if the query has a target, which
+ * carries the target as one of its parameters.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCQuery {
+
+    /**
+     * Default time in milliseconds to wait for the end numeric
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    static final int NONE = 0;
+    static final int REPLY = 1;
+    static final int END = 2;
+    static final int ERROR = 3;
+
+    private final String command;
+    private final String target;
+    private final int[] replies;
+    private final int[] ends;
+    private final int[] errors;
+    private final boolean endFollowsError;
+
+    /**
+     * Constructor
+     *
+     * @param command the raw command to send
+     * @param target the nick or channel every reply carries after our own
+     * nick, or null to accept replies for any target
+     * @param replies the numerics collected into the reply
+     * @param ends the numerics which complete the query
+     * @param errors the numerics which fail the query
+     * @param endFollowsError true if the server still sends the end numeric
+     * after an error, in which case the failed query waits to absorb it
+     */
+    public IRCQuery(String command, String target, int[] replies, int[] ends, int[] errors, boolean endFollowsError) {
+        if (ends.length == 0) {
+            throw new IllegalArgumentException("A query needs at least one end numeric");
+        }
+        this.command = command;
+        this.target = target;
+        this.replies = replies.clone();
+        this.ends = ends.clone();
+        this.errors = errors.clone();
+        this.endFollowsError = endFollowsError;
+    }
+
+    /**
+     * Creates a WHOIS query for a single nick. The reply ends with
+     * RPL_ENDOFWHOIS; ERR_NOSUCHNICK fails it.
+     *
+     * @param nick the nick to look up
+     * @return a new query
+     */
+    public static IRCQuery whois(String nick) {
+        return new IRCQuery("WHOIS " + nick, nick,
+                new int[]{IRCCode.RPL_AWAY, IRCCode.RPL_WHOISREGNICK, IRCCode.RPL_WHOISUSER, IRCCode.RPL_WHOISSERVER,
+                    IRCCode.RPL_WHOISOPERATOR, IRCCode.RPL_WHOISIDLE, IRCCode.RPL_WHOISCHANNELS, IRCCode.RPL_WHOISSPECIAL,
+                    IRCCode.RPL_WHOISACCOUNT, IRCCode.RPL_WHOISACTUALLY, IRCCode.RPL_WHOISHOST, IRCCode.RPL_WHOISMODES,
+                    IRCCode.RPL_WHOISCERTFP, IRCCode.RPL_WHOISSECURE},
+                new int[]{IRCCode.RPL_ENDOFWHOIS},
+                new int[]{IRCCode.ERR_NOSUCHNICK, IRCCode.ERR_NOSUCHSERVER}, true);
+    }
+
+    /**
+     * Creates a NAMES query for a single channel. The reply ends with
+     * RPL_ENDOFNAMES.
+     *
+     * @param channel the channel to list
+     * @return a new query
+     */
+    public static IRCQuery names(String channel) {
+        return new IRCQuery("NAMES " + channel, channel,
+                new int[]{IRCCode.RPL_NAMREPLY},
+                new int[]{IRCCode.RPL_ENDOFNAMES},
+                new int[]{IRCCode.ERR_NOSUCHCHANNEL, IRCCode.ERR_TOOMANYMATCHES}, false);
+    }
+
+    /**
+     * Creates a LIST query, for every channel if none are specified. The
+     * reply ends with RPL_LISTEND. LIST replies carry no common target, so
+     * pipelined LIST queries are answered strictly in order.
+     *
+     * @param channels the channels to list, or none for every channel
+     * @return a new query
+     */
+    public static IRCQuery list(String... channels) {
+        StringBuilder command = new StringBuilder("LIST");
+        for (int i = 0; i < channels.length; i++) {
+            command.append(i == 0 ? ' ' : ',').append(channels[i]);
+        }
+        return new IRCQuery(command.toString(), null,
+                new int[]{IRCCode.RPL_LISTSTART, IRCCode.RPL_LIST},
+                new int[]{IRCCode.RPL_LISTEND},
+                new int[]{IRCCode.RPL_TRYAGAIN, IRCCode.ERR_TOOMANYMATCHES}, false);
+    }
+
+    /**
+     * Creates a query for the modes of a channel. The reply is the single
+     * RPL_CHANNELMODEIS; the RPL_CREATIONTIME some servers send after it is
+     * not included.
+     *
+     * @param channel the channel to query
+     * @return a new query
+     */
+    public static IRCQuery mode(String channel) {
+        return new IRCQuery("MODE " + channel, channel,
+                new int[0],
+                new int[]{IRCCode.RPL_CHANNELMODEIS},
+                new int[]{IRCCode.ERR_NOSUCHNICK, IRCCode.ERR_NOSUCHCHANNEL, IRCCode.ERR_NOTONCHANNEL, IRCCode.ERR_NOCHANMODES}, false);
+    }
+
+    /**
+     * Returns the raw command sent for this query
+     *
+     * @return the raw command
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Returns the target every reply must carry, or null if replies are
+     * accepted for any target
+     *
+     * @return the target of the query
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns true if the server still sends the end numeric after an error
+     *
+     * @return true if an error is followed by the end numeric
+     */
+    public boolean endFollowsError() {
+        return endFollowsError;
+    }
+
+    /**
+     * Classifies a message as a REPLY, END or ERROR of this query, or NONE if
+     * its numeric or target does not belong to it
+     */
+    int classify(IRCMessage message, IRCCaseMapping mapping) {
+        int code = message.getMode();
+        int kind = contains(ends, code) ? END
+                : contains(replies, code) ? REPLY
+                        : contains(errors, code) ? ERROR : NONE;
+        if (kind == NONE || target == null || hasTarget(message, mapping)) {
+            return kind;
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns true if a parameter after our own nick equals the target. The
+     * last parameter is free text in every reply queries collect, so it is
+     * only checked when there is nothing else to check.
+     */
+    private boolean hasTarget(IRCMessage message, IRCCaseMapping mapping) {
+        int count = message.getParamCount();
+        int last = count > 2 ? count - 1 : count;
+        String raw = message.getRaw();
+        for (int i = 1; i < last; i++) {
+            int start = message.paramStart(i);
+            if (message.paramEnd(i) - start == target.length()
+                    && mapping.regionEquals(raw, start, target, 0, target.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(int[] codes, int code) {
+        for (int c : codes) {
+            if (c == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Pending queries of a connection, in the order they were sent. Servers
+ * answer commands in order, so every numeric goes to the oldest query which
+ * accepts it; queries for different targets can be pipelined freely.
+ * <p>
+ * Futures are completed on an executor rather than the reader, so dependent
+ * stages may block or send further queries.
+ * <p>
+ * A query which times out or is cancelled stays queued as failed until its
+ * end numeric arrives, or until it is retired. Its late replies are absorbed
+ * instead of being taken for the replies of the next query with the same
+ * target.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+final class IRCQueryQueue {
+
+    /**
+     * A query waiting for its end numeric. Replies are only touched with the
+     * queue locked.
+     */
+    static final class Pending {
+
+        final IRCQuery query;
+        final CompletableFuture<List<IRCMessage>> future;
+        final List<IRCMessage> replies = new ArrayList<>();
+        volatile ScheduledFuture<?> timeout;
+        // Completed already, only waiting to absorb its end numeric
+        boolean failed = false;
+
+        Pending(IRCQuery query, CompletableFuture<List<IRCMessage>> future) {
+            this.query = query;
+            this.future = future;
+        }
+    }
+
+    private final LinkedList<Pending> pending = new LinkedList<>();
+    private volatile int size = 0;
+
+    /**
+     * Returns the number of queued queries, including failed ones waiting
+     * for their end numeric
+     *
+     * @return the number of queued queries
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Queues a query. It must be queued before its command is sent.
+     *
+     * @param query the query
+     * @param future the future completed with its reply
+     * @return the pending entry
+     */
+    synchronized Pending add(IRCQuery query, CompletableFuture<List<IRCMessage>> future) {
+        Pending entry = new Pending(query, future);
+        pending.add(entry);
+        size = pending.size();
+        return entry;
+    }
+
+    /**
+     * Gives up on a query, such as when it times out or its future is
+     * cancelled. The query stays queued as failed until its end numeric
+     * arrives.
+     *
+     * @param entry the pending entry
+     * @return true if the query was still waiting for replies, false if it
+     * had already been answered or given up on
+     */
+    boolean abandon(Pending entry) {
+        ScheduledFuture<?> timer = entry.timeout;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        synchronized (this) {
+            if (entry.failed || !pending.contains(entry)) {
+                return false;
+            }
+            entry.failed = true;
+            entry.replies.clear();
+            return true;
+        }
+    }
+
+    /**
+     * Drops a failed query which is still waiting for its end numeric, once
+     * the reply is considered lost
+     *
+     * @param entry the pending entry
+     */
+    synchronized void retire(Pending entry) {
+        if (entry.failed && pending.remove(entry)) {
+            size = pending.size();
+        }
+    }
+
+    /**
+     * Hands a numeric to the oldest query which accepts it
+     *
+     * @param message the received message
+     * @param mapping the case mapping targets are compared under
+     * @param executor the executor futures are completed on
+     */
+    void dispatch(IRCMessage message, IRCCaseMapping mapping, Executor executor) {
+        if (size == 0 || message.getMode() < 0) {
+            return;
+        }
+
+        Pending done = null;
+        List<IRCMessage> replies = null;
+        int kind = IRCQuery.NONE;
+        synchronized (this) {
+            Iterator<Pending> it = pending.iterator();
+            while (it.hasNext()) {
+                Pending entry = it.next();
+                kind = entry.query.classify(message, mapping);
+                if (kind == IRCQuery.NONE) {
+                    continue;
+                }
+                if (entry.failed) {
+                    // Absorbed; only the numeric ending the query retires it
+                    if (kind == IRCQuery.REPLY || (kind == IRCQuery.ERROR && entry.query.endFollowsError())) {
+                        return;
+                    }
+                    it.remove();
+                    size = pending.size();
+                    ScheduledFuture<?> timer = entry.timeout;
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                    return;
+                }
+
+                entry.replies.add(message);
+                if (kind == IRCQuery.REPLY) {
+                    return;
+                }
+                if (kind == IRCQuery.ERROR && entry.query.endFollowsError()) {
+                    // Stays queued so the end numeric can not reach a later query
+                    entry.failed = true;
+                } else {
+                    it.remove();
+                    size = pending.size();
+                }
+                done = entry;
+                replies = new ArrayList<>(entry.replies);
+                break;
+            }
+        }
+        if (done == null) {
+            return;
+        }
+
+        final Pending entry = done;
+        final List<IRCMessage> result = Collections.unmodifiableList(replies);
+        final boolean failed = kind == IRCQuery.ERROR;
+        final String reason = message.getMode() + " " + message.getParam(message.getParamCount() - 1);
+        Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                if (failed) {
+                    entry.future.completeExceptionally(new IRCException(entry.query.getCommand() + ": " + reason));
+                } else {
+                    entry.future.complete(result);
+                }
+            }
+        };
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Fails and removes every pending query, such as when the connection is
+     * lost and their replies will never arrive
+     *
+     * @param cause the exception to fail the queries with
+     */
+    void failAll(Throwable cause) {
+        List<Pending> failed;
+        synchronized (this) {
+            failed = new ArrayList<>(pending);
+            pending.clear();
+            size = 0;
+        }
+        for (Pending entry : failed) {
+            ScheduledFuture<?> timer = entry.timeout;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            entry.future.completeExceptionally(cause);
+        }
+    }
+}
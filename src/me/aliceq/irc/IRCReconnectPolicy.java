@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a lost connection is re-established. Attempts are spaced by an
+ * exponential backoff with random jitter, so that many clients dropped at
+ * once do not all come back at the same moment. Instances are immutable.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCReconnectPolicy {
+
+    /**
+     * Starts at 1 second, doubles on every failed attempt up to 5 minutes,
+     * with up to half of each delay taken off at random, and never gives up
+     */
+    public static final IRCReconnectPolicy DEFAULT = new IRCReconnectPolicy(1000, 300000, 2, 0.5, 0);
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+    /**
+     * Constructor
+     *
+     * @param initialDelay milliseconds before the first attempt
+     * @param maxDelay the longest delay in milliseconds between attempts
+     * @param multiplier how much the delay grows after each failed attempt
+     * @param jitter the largest fraction of each delay taken off at random,
+     * between 0 and 1
+     * @param maxAttempts attempts before giving up, or 0 to keep trying
+     */
+    public IRCReconnectPolicy(long initialDelay, long maxDelay, double multiplier, double jitter, int maxAttempts) {
+        if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1 || jitter < 0 || jitter > 1 || maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid reconnect policy");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Returns the delay before an attempt
+     *
+     * @param attempt the number of attempts already made since the connection
+     * was lost
+     * @return the delay in milliseconds
+     */
+    public long delay(int attempt) {
+        double base = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+        return (long) (base - base * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Returns true if another attempt should be made
+     *
+     * @param attempt the number of attempts already made
+     * @return false once the maximum number of attempts is reached
+     */
+    public boolean allows(int attempt) {
+        return maxAttempts == 0 || attempt < maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    @Override
+    public String toString() {
+        return "IRCReconnectPolicy{initialDelay=" + initialDelay + ", maxDelay=" + maxDelay + ", multiplier=" + multiplier
+                + ", jitter=" + jitter + ", maxAttempts=" + maxAttempts + "}";
+    }
+}
@@ -24,16 +24,48 @@
 package me.aliceq.irc;
 
 import me.aliceq.irc.internal.IRCSocket;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import me.aliceq.irc.internal.IRCKeepalive;
+import me.aliceq.irc.internal.IRCLineFramer;
+import me.aliceq.irc.internal.IRCMailbox;
 import me.aliceq.irc.internal.IRCMessageRequest;
+import me.aliceq.irc.internal.IRCOutbound;
+import me.aliceq.irc.internal.IRCRequestIndex;
+import me.aliceq.irc.internal.IRCServerReader;
+import me.aliceq.irc.internal.IRCSubscription;
+import me.aliceq.irc.internal.IRCTextSplitter;
+import me.aliceq.irc.internal.IRCThreadFactory;
+import me.aliceq.irc.internal.IRCTimer;
+import me.aliceq.irc.internal.IRCVirtualThreads;
+import me.aliceq.irc.subroutines.CapabilitySubroutine;
 import me.aliceq.irc.subroutines.ChannelMonitoringSubroutine;
 import me.aliceq.irc.subroutines.ConnectionSubroutine;
 
@@ -49,20 +81,81 @@ public final class IRCServer {
     public static final int VERBOSITY_MEDIUM = 20;
     public static final int VERBOSITY_HIGH = 30;
 
-    private final IRCSocket socket;
-    private PrintWriter outstream;
-    private BufferedReader instream;
-
-    private final List<IRCMessageRequest> requests = new ArrayList(3);
+    /**
+     * Longest hostname the server may show in our prefix
+     */
+    private static final int HOST_LENGTH = 63;
 
-    private int activeThreadCount = 0;
+    /**
+     * Default milliseconds between keepalive PINGs
+     */
+    public static final long DEFAULT_PING_INTERVAL = 15000;
+    /**
+     * Default milliseconds of silence after which the connection is dead
+     */
+    public static final long DEFAULT_PING_TIMEOUT = 45000;
+    /**
+     * Longest list of channels sent in a single JOIN when rejoining
+     */
+    private static final int MAX_JOIN_LENGTH = 400;
+
+    private volatile IRCSocket socket;
+    private volatile IRCEventLoop eventLoop;
+    private final Object connectionLock = new Object();
+    private boolean connectionUp;
+    // Channels to join again once the next connection is welcomed
+    private final Map<IRCCaseKey, String> rejoin = new LinkedHashMap<>();
+    // The subroutine waiting for the current connection to register
+    private ConnectionSubroutine registration;
+    private volatile boolean quitting;
+    private final AtomicReference<Status> status = new AtomicReference<>(new Status(IRCConnectionState.CONNECTING, new CompletableFuture<>()));
+    private final List<IRCConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+    private volatile IRCReconnectPolicy reconnectPolicy = IRCReconnectPolicy.DEFAULT;
+    private final AtomicInteger reconnects = new AtomicInteger();
+    private volatile IRCOutbound outbound;
+    private volatile IRCFloodControl floodControl = IRCFloodControl.DEFAULT;
+    private volatile int flushSize = IRCOutbound.DEFAULT_FLUSH_SIZE;
+    private volatile long linger = IRCOutbound.DEFAULT_LINGER;
+    private InputStream instream;
+    private volatile IRCServerReader reader;
+    private volatile IRCKeepalive keepalive;
+    private volatile long pingInterval = DEFAULT_PING_INTERVAL;
+    private volatile long pingTimeout = DEFAULT_PING_TIMEOUT;
+    private final IRCLatencyHistogram latency = new IRCLatencyHistogram();
+
+    private final IRCRequestIndex requests = new IRCRequestIndex();
+    private final IRCQueryQueue queries = new IRCQueryQueue();
+    private final Set<IRCSubscription> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<IRCSubscription, Boolean>());
+
+    private static ExecutorService sharedExecutor;
+
+    private volatile Executor executor;
+    private final AtomicInteger runningSubroutines = new AtomicInteger();
+    private final AtomicInteger queuedSubroutines = new AtomicInteger();
+    private final AtomicLong completedSubroutines = new AtomicLong();
 
     private final IRCServerDetails details = new IRCServerDetails();
 
-    private final Map<String, IRCChannel> channels = new HashMap();
+    private final ConcurrentMap<IRCCaseKey, IRCChannel> channels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<IRCCaseKey, IRCUser> users = new ConcurrentHashMap<>();
+    private volatile IRCCaseMapping caseMapping = IRCCaseMapping.RFC1459;
+    private volatile boolean whox = false;
+    private volatile Collection<String> capabilities = CapabilitySubroutine.DEFAULT_CAPABILITIES;
 
     private int verbosity = VERBOSITY_LOW;
 
+    private volatile boolean virtualThreads = false;
+
+    /**
+     * Receives framed lines from either the reader thread or an event loop
+     */
+    final IRCLineFramer.LineHandler lineHandler = new IRCLineFramer.LineHandler() {
+        @Override
+        public void line(byte[] buffer, int offset, int length) {
+            receive(buffer, offset, length);
+        }
+    };
+
     /**
      * Basic constructor
      *
@@ -146,7 +239,8 @@ public final class IRCServer {
      * @return true if a connection is established
      */
     public boolean isConnected() {
-        return socket.isConnected();
+        IRCSocket current = socket;
+        return current.isConnected() && !current.isClosed();
     }
 
     /**
@@ -155,7 +249,8 @@ public final class IRCServer {
      * @return in/out are initialized and a connection exists
      */
     public boolean isReady() {
-        return socket.isConnected() && outstream != null && instream != null;
+        IRCSocket current = socket;
+        return isConnected() && outbound != null && (instream != null || current.getChannel() != null);
     }
 
     /**
@@ -170,312 +265,1370 @@ public final class IRCServer {
 
         // Set getDetails
         details.socketConnected = true;
+        eventLoop = null;
+        begin();
 
-        // Create output writer
+        // Create output writer and input reader
+        final IRCSocket current = socket;
         try {
-            outstream = new PrintWriter(this.socket.getOutputStream(), true);
-            instream = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+            outbound = createOutbound(IRCOutbound.streamSink(current.getOutputStream()), true);
+            instream = current.getInputStream();
+            keepalive = createKeepalive(current);
+            reader = new IRCServerReader(this, instream, lineHandler, keepalive, new IRCServerReader.CloseHandler() {
+                @Override
+                public void closed(String reason) {
+                    connectionLost(current, reason);
+                }
+            });
+            current.setReadTimeout((int) pingTimeout);
         } catch (IOException e) {
-            outstream = null;
+            outbound = null;
             instream = null;
             if (verbosity >= VERBOSITY_LOW) {
                 System.out.println(e);
             }
+            return;
         }
 
-        final BufferedReader in = instream;
-        final IRCServer server = this;
-
-        // Increment thread count
-        activeThreadCount++;
-
         // Create a new thread to read messages
-        Thread thread = new Thread(new Runnable() {
-            // TODO: Move all this to a dedicated ServerReader class
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        for (String line = in.readLine(); line != null; line = in.readLine()) {
-                            // PONG message handling
-                            if (line.startsWith("PING")) {
-                                send("PONG " + line.substring(5, line.length()));
-                            } else {
-                                // Otherwise parse the message
-                                server.validate(IRCMessage.parseFrom(line));
-                            }
-                        }
-                    } catch (IOException ex) {
-                        if (verbosity >= VERBOSITY_LOW) {
-                            System.out.println(ex);
-                        }
-                    }
-                }
-            }
-        });
+        Thread thread = new Thread(reader);
         thread.setDaemon(true);
         thread.start();
+        keepalive.start();
     }
 
     /**
-     * Sends the appropriate messages to identify and runs the authentication
-     * subroutine. If the connection is not ready this does nothing.
+     * Starts the server on an event loop. Instead of spawning a dedicated
+     * reader thread, the connection is multiplexed by one of the loop's
+     * selector threads. The socket must have been created from a
+     * SocketChannel.
      *
-     * @param identity the identity to identify with
+     * @param loop the event loop to read through
      */
-    public void identify(IRCIdentity identity) {
-        if (!isReady()) {
-            if (verbosity >= VERBOSITY_HIGH) {
-                System.out.println("[!] Can not identiy, server not ready");
-            }
-            return;
+    public void start(IRCEventLoop loop) {
+        if (!socket.isConnected()) {
+            throw new IRCException("Server is not connected");
+        } else if (socket.getChannel() == null) {
+            throw new IRCException("Socket does not support non-blocking I/O");
         } else if (verbosity >= VERBOSITY_HIGH) {
-            System.out.println("[!] Server identify as " + identity.username());
-        }
-
-        // Write messages to send
-        if (identity.password() != null && !identity.password().isEmpty()) {
-            write("PASS " + identity.password());
+            System.out.println("[!] Server start (event loop)");
         }
 
-        write("NICK " + identity.nickname());
-        write("USER " + identity.username()
-                + " " + identity.getMode()
-                + " * :" + identity.realname());
-
-        // Set identity
-        details.identity = identity;
-        details.currentNick = identity.nickname();
-
-        // Initialize subroutines
-        runSubroutine(new ConnectionSubroutine());
-        runSubroutine(new ChannelMonitoringSubroutine());
+        // Set getDetails
+        details.socketConnected = true;
+        eventLoop = loop;
+        begin();
 
-        // Flush messages
-        flush();
+        // Register with the loop, which also writes outgoing batches
+        IRCSocket current = socket;
+        try {
+            outbound = createOutbound(loop.register(this, current), false);
+        } catch (IOException e) {
+            outbound = null;
+            throw new IRCException(e);
+        }
+        keepalive = createKeepalive(current);
+        keepalive.start();
     }
 
     /**
-     * Returns the current number of queued requests
-     *
-     * @return the current number of queued requests
+     * Marks the current socket as the live connection
      */
-    public int activeRequests() {
-        return requests.size();
+    private void begin() {
+        synchronized (connectionLock) {
+            connectionUp = true;
+            quitting = false;
+        }
     }
 
     /**
-     * Sends and flushes a single message
+     * Handles a single line read from the socket, answering PINGs and
+     * dispatching everything else to the pending requests. The line is only
+     * decoded once it is known not to be a PING.
      *
-     * @param message message to send
+     * @param buffer the buffer holding the line
+     * @param offset the index of the first byte of the line
+     * @param length the length of the line in bytes
      */
-    public void send(String message) {
-        if (verbosity >= VERBOSITY_HIGH) {
-            System.out.println("[>] " + message);
+    void receive(byte[] buffer, int offset, int length) {
+        IRCKeepalive alive = keepalive;
+        if (alive != null) {
+            alive.received();
         }
 
-        outstream.write(message + "\r\n");
-        outstream.flush();
-    }
+        // Skip tags and prefix to find the command
+        int start = offset;
+        int end = offset + length;
+        while (start < end && (buffer[start] == '@' || buffer[start] == ':')) {
+            while (start < end && buffer[start] != ' ') {
+                start++;
+            }
+            while (start < end && buffer[start] == ' ') {
+                start++;
+            }
+        }
 
-    /**
-     * Sends and flushes a group of messages
-     *
-     * @param messages messages to send
-     */
-    public void send(String[] messages) {
-        for (String message : messages) {
-            if (verbosity >= VERBOSITY_MEDIUM) {
-                System.out.println("[>] " + message);
+        // PINGs are answered on this thread, ahead of anything queued
+        IRCOutbound out = outbound;
+        if (out != null && IRCLineFramer.startsWith(buffer, start, end - start, "PING ")) {
+            String pong = "PONG " + IRCLineFramer.decode(buffer, start + 5, end - start - 5);
+            if (verbosity >= VERBOSITY_HIGH) {
+                System.out.println("[>] " + pong);
+            }
+            out.sendNow(pong);
+            return;
+        }
+
+        // Otherwise parse the message
+        IRCMessage message = IRCMessage.parseFrom(IRCLineFramer.decode(buffer, offset, length));
+        if (message.getMode() == IRCCode.RPL_WELCOME) {
+            if (out != null) {
+                out.resetFloodClock();
+            }
+            details.connected = true;
+            setState(IRCConnectionState.READY);
+            rejoinChannels();
+        } else if (message.getMode() == IRCCode.RPL_ISUPPORT) {
+            IRCSupport merged = details.support.merge(message);
+            details.support = merged;
+            if (merged.getCaseMapping() != caseMapping) {
+                setCaseMapping(merged.getCaseMapping());
             }
-            outstream.write(message + "\r\n");
+        } else if (alive != null && message.typeEquals("PONG")) {
+            alive.pong(message.getParam(message.getParamCount() - 1));
         }
-        outstream.flush();
+        message.support = details.support;
+        queries.dispatch(message, caseMapping, getExecutor());
+        validate(message);
     }
 
     /**
-     * Sends a join message to the server and adds the required channels to a
-     * list of channels
-     *
-     * @param channels the channels to join, comma-separated
+     * Creates the keepalive for a new connection with the current settings
      */
-    public void join(String channels) {
-        join(channels, "");
+    private IRCKeepalive createKeepalive(final IRCSocket current) {
+        return new IRCKeepalive(outbound, latency, pingInterval, pingTimeout, new Runnable() {
+            @Override
+            public void run() {
+                connectionLost(current, "No data received for " + pingTimeout + "ms");
+            }
+        });
     }
 
     /**
-     * Sends a join message to the server and adds the required channels to a
-     * list of channels
+     * Tears down a connection which ended or was found dead, and schedules a
+     * reconnect unless the connection was closed by quitting. The socket is
+     * closed so that a reader blocked on it wakes up and exits. Reports about
+     * a socket which has already been replaced are ignored.
      *
-     * @param channels the channels to join, comma-separated
-     * @param passwords the channel passwords, comma-separated
+     * @param lost the socket of the connection which ended
+     * @param reason why the connection was lost
      */
-    public void join(String channels, String passwords) {
-        send("JOIN " + channels + " " + passwords);
+    void connectionLost(IRCSocket lost, String reason) {
+        synchronized (connectionLock) {
+            if (lost != socket || !connectionUp) {
+                return;
+            }
+            connectionUp = false;
+
+            IRCKeepalive alive = keepalive;
+            if (alive != null) {
+                alive.stop();
+            }
+            IRCServerReader current = reader;
+            if (current != null) {
+                current.stop();
+            }
+
+            details.socketConnected = false;
+            details.connected = false;
+            details.identified = false;
+            lost.close();
+            IRCOutbound out = outbound;
+            if (out != null) {
+                out.close();
+            }
+
+            ConnectionSubroutine pending = registration;
+            if (pending != null) {
+                pending.stop();
+                registration = null;
+            }
+
+            // Channel state is rebuilt from scratch once we rejoin. Channels
+            // still waiting from an attempt which was never welcomed are kept
+            if (quitting) {
+                rejoin.clear();
+            } else {
+                for (Map.Entry<IRCCaseKey, IRCChannel> entry : channels.entrySet()) {
+                    rejoin.put(entry.getKey(), entry.getValue().getName());
+                }
+            }
+            channels.clear();
+            users.clear();
+        }
+
+        // Replies to queries sent on the lost connection will never arrive
+        queries.failAll(new IRCException("Connection lost: " + reason));
+
+        if (verbosity >= VERBOSITY_LOW) {
+            System.out.println("[!] Connection lost: " + reason);
+        }
+        if (quitting) {
+            setState(IRCConnectionState.CLOSED);
+        } else {
+            scheduleReconnect(0);
+        }
     }
 
     /**
-     * Sends a private message to a target. This can be either an username or a
-     * channel.
+     * Schedules a reconnect attempt following the reconnect policy's backoff,
+     * or closes the connection if the policy or a shut down event loop rules
+     * reconnecting out. The shared timer only wakes the attempt; connecting and registering run
+     * on the server's executor, so a slow DNS lookup or connect can not delay
+     * the keepalive checks of other connections.
      *
-     * @param target Target of the message
-     * @param message message to send
+     * @param attempt the number of attempts already made
      */
-    public void message(String target, String message) {
-        send("PRIVMSG " + target + " :" + message);
+    private void scheduleReconnect(final int attempt) {
+        IRCReconnectPolicy policy = reconnectPolicy;
+        IRCEventLoop loop = eventLoop;
+        if (policy == null || quitting || !policy.allows(attempt) || (loop != null && loop.isShutdown())) {
+            if (verbosity >= VERBOSITY_LOW) {
+                System.out.println("[!] Not reconnecting");
+            }
+            setState(IRCConnectionState.CLOSED);
+            return;
+        }
+        setState(IRCConnectionState.RECONNECTING);
+
+        long delay = policy.delay(attempt);
+        if (verbosity >= VERBOSITY_LOW) {
+            System.out.println("[!] Reconnecting in " + delay + "ms");
+        }
+        final Runnable attemptTask = new Runnable() {
+            @Override
+            public void run() {
+                reconnect(attempt);
+            }
+        };
+        IRCTimer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getExecutor().execute(attemptTask);
+                } catch (RejectedExecutionException e) {
+                    if (verbosity >= VERBOSITY_LOW) {
+                        System.out.println("[!] Reconnect rejected by the executor");
+                    }
+                    scheduleReconnect(attempt + 1);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Sends an action message to a target. This can be either an username or a
-     * channel. An action message usually displays of the form *user message
-     *
-     * @param target target of the message
-     * @param action message to send
+     * Opens a new socket to the same server, starts it the same way as
+     * before and registers with the previous identity. Channels are rejoined
+     * when the server welcomes us. Running subroutines keep their
+     * subscriptions, since requests belong to the server rather than the
+     * socket.
      */
-    public void action(String target, String action) {
-        send("PRIVMSG " + target + " :\u0001ACTION " + action + "\u0001");
+    private void reconnect(int attempt) {
+        if (quitting) {
+            return;
+        }
+
+        IRCSocket fresh;
+        try {
+            fresh = socket.reopen();
+        } catch (IRCException e) {
+            if (verbosity >= VERBOSITY_LOW) {
+                System.out.println("[!] Reconnect failed: " + e.getMessage());
+            }
+            scheduleReconnect(attempt + 1);
+            return;
+        }
+
+        synchronized (connectionLock) {
+            if (quitting || connectionUp) {
+                fresh.close();
+                return;
+            }
+            socket = fresh;
+            details.support = IRCSupport.EMPTY;
+            details.socketAddress = fresh.getLocalAddress();
+            details.socketPort = fresh.getLocalPort();
+        }
+
+        IRCEventLoop loop = eventLoop;
+        try {
+            if (loop != null) {
+                start(loop);
+            } else {
+                start();
+            }
+        } catch (IRCException e) {
+            if (verbosity >= VERBOSITY_LOW) {
+                System.out.println("[!] Reconnect failed: " + e.getMessage());
+            }
+        }
+        if (!isReady()) {
+            synchronized (connectionLock) {
+                connectionUp = false;
+            }
+            fresh.close();
+            scheduleReconnect(attempt + 1);
+            return;
+        }
+        reconnects.incrementAndGet();
+
+        IRCIdentity identity = details.identity;
+        if (identity == null) {
+            return;
+        }
+        handshake(identity);
+        flush();
     }
 
     /**
-     * Sends a message to part from a channel. If the channel is not monitored,
-     * this does nothing.
-     *
-     * @param channel the channel to leave
-     * @param message parting message
+     * Joins the channels which the previous connection was in. This runs once
+     * per welcome, after connection listeners have had the chance to join
+     * channels themselves; channels they joined are not joined again.
      */
-    public void part(String channel, String message) {
-        part(channels.get(channel.toLowerCase()), message);
+    private void rejoinChannels() {
+        List<String> names;
+        synchronized (connectionLock) {
+            if (rejoin.isEmpty()) {
+                return;
+            }
+            names = new ArrayList<>(rejoin.values());
+            rejoin.clear();
+        }
+
+        // Join in as few lines as fit
+        StringBuilder list = new StringBuilder();
+        for (String name : names) {
+            if (list.length() > 0 && list.length() + name.length() + 1 > MAX_JOIN_LENGTH) {
+                send("JOIN " + list);
+                list.setLength(0);
+            }
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(name);
+        }
+        if (list.length() > 0) {
+            send("JOIN " + list);
+        }
     }
 
     /**
-     * Sends a message to part from a channel. If the channel is not monitored,
-     * this does nothing.
+     * Returns the current state of the connection
      *
-     * @param channel the channel to leave
+     * @return the connection state
      */
-    public void part(String channel) {
-        part(channels.get(channel.toLowerCase()), null);
+    public IRCConnectionState getState() {
+        return status.get().state;
     }
 
     /**
-     * Sends a message to part from a channel.
+     * Adds a listener notified whenever the connection changes state
      *
-     * @param channel the channel to leave
-     * @param message parting message
+     * @param listener the listener to add
      */
-    protected void part(IRCChannel channel, String message) {
-        if (channel == null) {
-            return;
-        }
-
-        channels.remove(channel.getName());
-        send("PART " + channel.getName() + (message == null ? "" : " :" + message));
+    public void addConnectionListener(IRCConnectionListener listener) {
+        connectionListeners.add(listener);
     }
 
     /**
-     * Quits the server
+     * Removes a connection listener
      *
-     * @param message
+     * @param listener the listener to remove
      */
-    public void quit(String message) {
-        channels.clear();
-        details.connected = false;
-        details.identified = false;
-        send("QUIT " + (message == null ? "" : " :" + message));
+    public void removeConnectionListener(IRCConnectionListener listener) {
+        connectionListeners.remove(listener);
     }
 
     /**
-     * Quits the server
+     * Returns a future completed with this server once it is READY. If it is
+     * ready now, the future is already complete. The future fails if the
+     * connection is closed first.
      *
+     * @return a future of the server being ready
      */
-    public void quit() {
-        quit(null);
+    public CompletableFuture<IRCServer> whenReady() {
+        return status.get().ready;
     }
 
     /**
-     * Writes a message for sending. Note that this doesn't flush the stream.
+     * Waits until the server is READY, such as after identify or a
+     * reconnect. This returns as soon as RPL_WELCOME is read, without
+     * polling.
      *
-     * @param message message to write
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the server is ready, false if the wait timed out or the
+     * connection was closed
+     * @throws InterruptedException if the thread is interrupted while waiting
      */
-    protected void write(String message) {
-        if (verbosity >= VERBOSITY_MEDIUM) {
-            System.out.println("[~] " + message);
+    public boolean awaitReady(long timeout) throws InterruptedException {
+        try {
+            whenReady().get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
         }
-        outstream.write(message + "\r\n");
     }
 
     /**
-     * FLushes the output stream
+     * Moves the connection to a new state and notifies the listeners, then
+     * wakes anyone waiting for READY. Leaving READY starts a new ready
+     * future; closing fails it. CLOSED is final, so a late reply can not
+     * revive a server which quit.
+     * <p>
+     * The state and its future are swapped together, so a thread completing
+     * the future of one READY can never complete or replace the future of
+     * another.
      */
-    protected void flush() {
+    private void setState(IRCConnectionState to) {
+        Status current, next;
+        do {
+            current = status.get();
+            if (current.state == to || current.state == IRCConnectionState.CLOSED) {
+                return;
+            }
+            CompletableFuture<IRCServer> future = current.ready;
+            if (to != IRCConnectionState.READY && future.isDone()) {
+                future = new CompletableFuture<>();
+            }
+            next = new Status(to, future);
+        } while (!status.compareAndSet(current, next));
+        IRCConnectionState from = current.state;
+        CompletableFuture<IRCServer> ready = next.ready;
+
         if (verbosity >= VERBOSITY_HIGH) {
-            System.out.println("[^] Flush");
+            System.out.println("[!] State " + from + " -> " + to);
+        }
+        for (IRCConnectionListener listener : connectionListeners) {
+            try {
+                listener.stateChanged(this, from, to);
+            } catch (RuntimeException e) {
+                if (verbosity >= VERBOSITY_LOW) {
+                    System.out.println(e);
+                }
+            }
+        }
+
+        if (to == IRCConnectionState.READY) {
+            ready.complete(this);
+        } else if (to == IRCConnectionState.CLOSED) {
+            ready.completeExceptionally(new IRCException("Connection closed"));
+            for (IRCSubscription subscription : subscriptions) {
+                subscription.complete();
+            }
         }
-        outstream.flush();
     }
 
     /**
-     * Pushes a request into the stack
+     * Sets how lost connections are re-established. Unless changed,
+     * IRCReconnectPolicy.DEFAULT is used.
      *
-     * @param request the message request to add
+     * @param policy the reconnect policy, or null to never reconnect
      */
-    public synchronized void addRequest(IRCMessageRequest request) {
-        requests.add(request);
+    public void setReconnectPolicy(IRCReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
     }
 
     /**
-     * Removes a request from the stack
+     * Returns how lost connections are re-established
      *
-     * @param request the message request to remove
+     * @return the reconnect policy, or null if lost connections stay closed
      */
-    public synchronized void removeRequest(IRCMessageRequest request) {
-        requests.remove(request);
+    public IRCReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
     }
 
     /**
-     * Compares an incoming message to all of the current requests. If any
-     * requests match they are cleared and unblocked.
+     * Returns the number of times the connection was re-established
      *
-     * @param message message to validate
+     * @return the number of successful reconnects
      */
-    protected synchronized void validate(IRCMessage message) {
-        if (verbosity >= VERBOSITY_HIGH) {
-            System.out.println(message);
-        } else if (verbosity >= VERBOSITY_MEDIUM) {
-            System.out.println(message + " [" + requests.size() + "]");
-        }
+    public int reconnectCount() {
+        return reconnects.get();
+    }
 
-        // Iterate through the requests using a for-loop to avoid concurrent modification
-        for (int i = 0; i < requests.size(); i++) {
-            if (requests.get(i).validate(message)) {
-                requests.remove(i--);
+    /**
+     * Sets how the connection is kept alive. A PING is sent every interval and
+     * its round-trip time recorded; the connection is dropped once nothing at
+     * all has been received for the timeout. This also becomes the socket's
+     * read timeout.
+     *
+     * @param interval milliseconds between PINGs, or 0 to send none
+     * @param timeout milliseconds of silence before the connection is
+     * dropped, or 0 to never drop it
+     */
+    public void setKeepalive(long interval, long timeout) {
+        this.pingInterval = Math.max(0, interval);
+        this.pingTimeout = Math.max(0, timeout);
+
+        IRCKeepalive current = keepalive;
+        if (current != null && !current.isExpired()) {
+            current.configure(pingInterval, pingTimeout);
+            if (reader != null) {
+                try {
+                    socket.setReadTimeout((int) pingTimeout);
+                } catch (IOException e) {
+                    if (verbosity >= VERBOSITY_LOW) {
+                        System.out.println(e);
+                    }
+                }
             }
         }
     }
 
     /**
-     * Places a low-priority subroutine on its own thread and runs it,
-     * monitoring it
+     * Returns the round-trip times of the keepalive PINGs
      *
-     * @param subroutine the subroutine to run
-     * @throws UnsupportedOperationException if this is called before starting
-     * the server
+     * @return the latency histogram
      */
-    public void runSubroutine(IRCSubroutine subroutine) {
-        runSubroutine(subroutine, Thread.MIN_PRIORITY, true);
+    public IRCLatencyHistogram getLatency() {
+        return latency;
     }
 
     /**
-     * Places a subroutine on its own thread and runs it, monitoring it. By
-     * default the subroutine will be run on a daemon thread.
+     * Returns the current lag: how long the outstanding keepalive PING has
+     * been waiting, or the latest round-trip time if none is outstanding
      *
-     * @param subroutine the subroutine to run
-     * @param priority the Thread priority to give the subroutine
-     * @throws UnsupportedOperationException if this is called before starting
-     * the server
+     * @return the lag in milliseconds
      */
-    public void runSubroutine(IRCSubroutine subroutine, int priority) {
-        runSubroutine(subroutine, priority, true);
+    public double getLag() {
+        IRCKeepalive alive = keepalive;
+        return alive == null ? 0 : alive.lag();
+    }
+
+    /**
+     * Sends the appropriate messages to identify and runs the authentication
+     * subroutine. If the connection is not ready this does nothing.
+     *
+     * @param identity the identity to identify with
+     */
+    public void identify(IRCIdentity identity) {
+        if (!isReady()) {
+            if (verbosity >= VERBOSITY_HIGH) {
+                System.out.println("[!] Can not identiy, server not ready");
+            }
+            return;
+        } else if (verbosity >= VERBOSITY_HIGH) {
+            System.out.println("[!] Server identify as " + identity.username());
+        }
+
+        // Write messages to send and start the registration subroutines
+        handshake(identity);
+
+        // Initialize subroutines
+        runSubroutine(new ChannelMonitoringSubroutine());
+
+        // Flush messages
+        flush();
+    }
+
+    /**
+     * Creates the outgoing queue with the current flush policy and flood
+     * control. Queues for blocking sinks get a writer thread of their own.
+     */
+    private IRCOutbound createOutbound(IRCOutbound.Sink sink, boolean blocking) {
+        IRCOutbound queue = new IRCOutbound(sink, blocking);
+        queue.setFlushPolicy(flushSize, linger);
+        queue.setFloodControl(floodControl);
+        return queue;
+    }
+
+    /**
+     * Returns the features the server advertised in RPL_ISUPPORT. This is the
+     * same snapshot as getDetails().support.
+     *
+     * @return the latest snapshot of advertised features
+     */
+    public IRCSupport getSupport() {
+        return details.support;
+    }
+
+    /**
+     * Writes the registration messages for an identity without flushing
+     *
+     * @param identity the identity to register with
+     */
+    private void handshake(IRCIdentity identity) {
+        details.capabilities = Collections.emptySet();
+        details.account = null;
+        setState(IRCConnectionState.REGISTERING);
+
+        // CAP LS holds registration until the capability subroutine sends
+        // CAP END, so SASL completes before we are welcomed
+        Collection<String> wanted = capabilities;
+        boolean negotiate = !wanted.isEmpty() || identity.saslMechanism() != null;
+        if (negotiate) {
+            write("CAP LS 302");
+        }
+        if (identity.password() != null && !identity.password().isEmpty()) {
+            write("PASS " + identity.password());
+        }
+
+        write("NICK " + identity.nickname());
+        write("USER " + identity.username()
+                + " " + identity.getMode()
+                + " * :" + identity.realname());
+
+        // Set identity
+        details.identity = identity;
+        details.currentNick = identity.nickname();
+
+        if (negotiate) {
+            runSubroutine(new CapabilitySubroutine(wanted, identity.saslMechanism(), identity.saslResponse()));
+        }
+
+        // Only one registration is awaited per connection
+        ConnectionSubroutine next = new ConnectionSubroutine();
+        ConnectionSubroutine previous;
+        synchronized (connectionLock) {
+            previous = registration;
+            registration = next;
+        }
+        if (previous != null) {
+            previous.stop();
+        }
+        runSubroutine(next);
+    }
+
+    /**
+     * Sets the IRCv3 capabilities requested during registration, if the
+     * server offers them. Unless changed, CapabilitySubroutine's
+     * DEFAULT_CAPABILITIES are requested. With no capabilities and no SASL
+     * mechanism on the identity, negotiation is skipped entirely. Takes effect
+     * on the next registration.
+     *
+     * @param capabilities the capability names, such as server-time
+     */
+    public void setCapabilities(Collection<String> capabilities) {
+        this.capabilities = Collections.unmodifiableList(new ArrayList<>(capabilities));
+    }
+
+    /**
+     * Returns the IRCv3 capabilities requested during registration
+     *
+     * @return the capability names
+     */
+    public Collection<String> getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Returns the current number of queued requests
+     *
+     * @return the current number of queued requests
+     */
+    public int activeRequests() {
+        return requests.size();
+    }
+
+    /**
+     * Queues a single message for sending. This returns immediately; the
+     * message is written by a writer thread, batched with any other queued
+     * messages. Connections on an event loop share the writer threads, while
+     * a connection with a reader thread of its own also has its own writer.
+     *
+     * @param message message to send
+     */
+    public void send(String message) {
+        if (verbosity >= VERBOSITY_HIGH) {
+            System.out.println("[>] " + message);
+        }
+
+        outbound.send(message);
+    }
+
+    /**
+     * Queues a single message for sending in the specified priority lane.
+     * Messages sent without a priority use HIGH for PING, PONG and QUIT and
+     * NORMAL for everything else.
+     *
+     * @param message message to send
+     * @param priority the lane to queue the message in
+     */
+    public void send(String message, IRCPriority priority) {
+        if (verbosity >= VERBOSITY_HIGH) {
+            System.out.println("[>] " + message);
+        }
+
+        outbound.send(message, priority);
+    }
+
+    /**
+     * Queues a single message for sending
+     *
+     * @param message message to send
+     * @return a future completed once the message has been written to the
+     * socket, or completed exceptionally if the write failed
+     */
+    public CompletableFuture<Void> sendAsync(String message) {
+        if (verbosity >= VERBOSITY_HIGH) {
+            System.out.println("[>] " + message);
+        }
+
+        return outbound.sendAsync(message);
+    }
+
+    /**
+     * Queues a group of messages for sending in a single batch
+     *
+     * @param messages messages to send
+     */
+    public void send(String[] messages) {
+        for (String message : messages) {
+            if (verbosity >= VERBOSITY_MEDIUM) {
+                System.out.println("[>] " + message);
+            }
+        }
+        outbound.send(messages);
+    }
+
+    /**
+     * Sets when queued messages are written. Messages are written once the
+     * queued bytes reach the flush size, or once the oldest queued message has
+     * waited for the linger time. A linger of 0 writes as soon as a writer
+     * thread is free, which still batches messages queued in the meantime.
+     *
+     * @param flushSize the number of queued bytes which triggers a write
+     * @param linger the maximum time in milliseconds a message may wait
+     */
+    public void setFlushPolicy(int flushSize, long linger) {
+        this.flushSize = flushSize;
+        this.linger = linger;
+        if (outbound != null) {
+            outbound.setFlushPolicy(flushSize, linger);
+        }
+    }
+
+    /**
+     * Sets the flood control which paces outgoing messages. Unless changed,
+     * the classic ircd penalty of IRCFloodControl.DEFAULT is used. High
+     * priority messages are never held back.
+     *
+     * @param floodControl the flood control settings, or null for none
+     */
+    public void setFloodControl(IRCFloodControl floodControl) {
+        this.floodControl = floodControl == null ? IRCFloodControl.UNLIMITED : floodControl;
+        if (outbound != null) {
+            outbound.setFloodControl(this.floodControl);
+        }
+    }
+
+    /**
+     * Returns the flood control which paces outgoing messages
+     *
+     * @return the flood control settings
+     */
+    public IRCFloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent
+     *
+     * @return the number of queued messages
+     */
+    public int queuedMessages() {
+        return outbound == null ? 0 : outbound.queuedLines();
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent in a priority lane
+     *
+     * @param priority the lane
+     * @return the number of queued messages in the lane
+     */
+    public int queuedMessages(IRCPriority priority) {
+        return outbound == null ? 0 : outbound.queuedLines(priority);
+    }
+
+    /**
+     * Returns the number of messages written to the socket so far
+     *
+     * @return the number of sent messages
+     */
+    public long sentMessages() {
+        return outbound == null ? 0 : outbound.sentLines();
+    }
+
+    /**
+     * Returns the average time messages spent queued before being written
+     *
+     * @return the average delay in milliseconds
+     */
+    public double averageSendDelay() {
+        return outbound == null ? 0 : outbound.averageWait();
+    }
+
+    /**
+     * Returns the longest time a message spent queued before being written
+     *
+     * @return the longest delay in milliseconds
+     */
+    public double maximumSendDelay() {
+        return outbound == null ? 0 : outbound.maximumWait();
+    }
+
+    /**
+     * Returns the number of times flood control held messages back
+     *
+     * @return the number of throttled writes
+     */
+    public long throttledWrites() {
+        return outbound == null ? 0 : outbound.throttleCount();
+    }
+
+    /**
+     * Sends a join message to the server and adds the required channels to a
+     * list of channels
+     *
+     * @param channels the channels to join, comma-separated
+     */
+    public void join(String channels) {
+        join(channels, "");
+    }
+
+    /**
+     * Sends a join message to the server and adds the required channels to a
+     * list of channels
+     *
+     * @param channels the channels to join, comma-separated
+     * @param passwords the channel passwords, comma-separated
+     */
+    public void join(String channels, String passwords) {
+        // Channels joined explicitly are not rejoined after a reconnect
+        synchronized (connectionLock) {
+            if (!rejoin.isEmpty()) {
+                for (String name : channels.split(",")) {
+                    for (Iterator<IRCCaseKey> keys = rejoin.keySet().iterator(); keys.hasNext();) {
+                        IRCCaseKey key = keys.next();
+                        if (key.equals(IRCCaseKey.of(name, key.getMapping()))) {
+                            keys.remove();
+                        }
+                    }
+                }
+            }
+        }
+        send("JOIN " + channels + " " + passwords);
+    }
+
+    /**
+     * Sends a private message to a target. This can be either an username or a
+     * channel.
+     *
+     * @param target Target of the message
+     * @param message message to send
+     */
+    public void message(String target, String message) {
+        sendText("PRIVMSG", Arrays.asList(target), "", message);
+    }
+
+    /**
+     * Sends the same private message to several targets. Targets are combined
+     * into as few lines as the server's TARGMAX allows, and long messages are
+     * split as for a single target.
+     *
+     * @param targets targets of the message
+     * @param message message to send
+     */
+    public void message(Collection<String> targets, String message) {
+        sendText("PRIVMSG", targets, "", message);
+    }
+
+    /**
+     * Sends an action message to a target. This can be either an username or a
+     * channel. An action message usually displays of the form *user message
+     *
+     * @param target target of the message
+     * @param action message to send
+     */
+    public void action(String target, String action) {
+        sendText("PRIVMSG", Arrays.asList(target), "ACTION ", action);
+    }
+
+    /**
+     * Sends text to a group of targets. The text is split on line breaks and
+     * then into pieces which still fit a line once the server relays them
+     * with our prefix, and the targets are grouped into comma-separated lists
+     * within the command's TARGMAX and the line length.
+     *
+     * @param command the command, such as PRIVMSG
+     * @param targets targets of the text
+     * @param ctcp a CTCP command and space to wrap each piece in, or ""
+     * @param text the text to send
+     */
+    private void sendText(String command, Collection<String> targets, String ctcp, String text) {
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        IRCSupport features = details.support;
+        int lineLength = features.getLineLength() - 2;
+        int wrapper = ctcp.isEmpty() ? 0 : ctcp.length() + 2;
+
+        // Recipients see ":nick!user@host COMMAND target :text", so the budget
+        // is what is left after the longest target and our own prefix
+        int longest = 0;
+        for (String target : targets) {
+            longest = Math.max(longest, IRCTextSplitter.utf8Length(target));
+        }
+        int budget = lineLength - prefixLength() - command.length() - longest - 3 - wrapper;
+        List<String> pieces = IRCTextSplitter.split(text, budget);
+        if (pieces.isEmpty()) {
+            return;
+        }
+        int widest = 0;
+        for (String piece : pieces) {
+            widest = Math.max(widest, IRCTextSplitter.utf8Length(piece));
+        }
+
+        // Combine targets as long as the line we send still fits
+        int maxTargets = features.getTargetMax(command);
+        int room = lineLength - command.length() - 3 - widest - wrapper;
+        List<String> lines = new ArrayList<>();
+        StringBuilder group = new StringBuilder();
+        int count = 0;
+        for (String target : targets) {
+            int length = IRCTextSplitter.utf8Length(target);
+            if (count > 0 && (count >= maxTargets || IRCTextSplitter.utf8Length(group) + 1 + length > room)) {
+                addLines(lines, command, group.toString(), ctcp, pieces);
+                group.setLength(0);
+                count = 0;
+            }
+            if (count > 0) {
+                group.append(',');
+            }
+            group.append(target);
+            count++;
+        }
+        addLines(lines, command, group.toString(), ctcp, pieces);
+        send(lines.toArray(new String[lines.size()]));
+    }
+
+    private static void addLines(List<String> lines, String command, String target, String ctcp, List<String> pieces) {
+        for (String piece : pieces) {
+            if (ctcp.isEmpty()) {
+                lines.add(command + " " + target + " :" + piece);
+            } else {
+                lines.add(command + " " + target + " :\u0001" + ctcp + piece + "\u0001");
+            }
+        }
+    }
+
+    /**
+     * Returns the space reserved for the prefix the server adds when relaying
+     * our messages. Our host is not known, so the longest allowed hostname is
+     * assumed.
+     */
+    private int prefixLength() {
+        IRCIdentity identity = details.identity;
+        String nick = details.currentNick;
+        int nickLength = nick == null ? details.support.getInt("NICKLEN", 30) : IRCTextSplitter.utf8Length(nick);
+        int userLength = identity == null ? details.support.getInt("USERLEN", 10) : IRCTextSplitter.utf8Length(identity.username());
+        // ":" nick "!~" user "@" host " "
+        return 1 + nickLength + 2 + userLength + 1 + HOST_LENGTH + 1;
+    }
+
+    /**
+     * Sends a message to part from a channel. If the channel is not monitored,
+     * this does nothing.
+     *
+     * @param channel the channel to leave
+     * @param message parting message
+     */
+    public void part(String channel, String message) {
+        part(findChannel(channel), message);
+    }
+
+    /**
+     * Sends a message to part from a channel. If the channel is not monitored,
+     * this does nothing.
+     *
+     * @param channel the channel to leave
+     */
+    public void part(String channel) {
+        part(findChannel(channel), null);
+    }
+
+    /**
+     * Sends a message to part from a channel.
+     *
+     * @param channel the channel to leave
+     * @param message parting message
+     */
+    protected void part(IRCChannel channel, String message) {
+        if (channel == null) {
+            return;
+        }
+
+        unregisterChannel(channel.getName());
+        send("PART " + channel.getName() + (message == null ? "" : " :" + message));
+    }
+
+    /**
+     * Quits the server
+     *
+     * @param message
+     */
+    public void quit(String message) {
+        quitting = true;
+        channels.clear();
+        users.clear();
+        details.connected = false;
+        details.identified = false;
+        send("QUIT " + (message == null ? "" : " :" + message));
+        setState(IRCConnectionState.CLOSED);
+    }
+
+    /**
+     * Quits the server
+     *
+     */
+    public void quit() {
+        quit(null);
+    }
+
+    /**
+     * Writes a message for sending. Note that this doesn't flush the stream.
+     *
+     * @param message message to write
+     */
+    protected void write(String message) {
+        if (verbosity >= VERBOSITY_MEDIUM) {
+            System.out.println("[~] " + message);
+        }
+        outbound.write(message);
+    }
+
+    /**
+     * Writes every queued message on the calling thread
+     */
+    protected void flush() {
+        if (verbosity >= VERBOSITY_HIGH) {
+            System.out.println("[^] Flush");
+        }
+        outbound.flush();
+    }
+
+    /**
+     * Pushes a request into the stack
+     *
+     * @param request the message request to add
+     */
+    public void addRequest(IRCMessageRequest request) {
+        requests.add(request);
+        if (request instanceof IRCSubscription) {
+            subscriptions.add((IRCSubscription) request);
+        }
+    }
+
+    /**
+     * Removes a request from the stack
+     *
+     * @param request the message request to remove
+     */
+    public void removeRequest(IRCMessageRequest request) {
+        requests.remove(request);
+        if (request instanceof IRCSubscription) {
+            subscriptions.remove((IRCSubscription) request);
+        }
+    }
+
+    /**
+     * Calls the handler with every matching message on the server's
+     * executor. No thread is held between messages, and the handler is never
+     * called from two threads at once. Uses the default capacity; once the
+     * handler falls that far behind, the oldest waiting message is dropped.
+     *
+     * @param listener the listener selecting the messages to handle
+     * @param handler the handler called with each matching message
+     * @return the open subscription, which is cancelled to stop delivery
+     */
+    public IRCSubscription subscribe(IRCMessageListener listener, Consumer<IRCMessage> handler) {
+        return subscribe(listener, handler, getExecutor());
+    }
+
+    /**
+     * Calls the handler with every matching message on the specified
+     * executor. An exception thrown by the handler cancels the subscription.
+     *
+     * @param listener the listener selecting the messages to handle
+     * @param handler the handler called with each matching message
+     * @param executor the executor the handler is called on
+     * @return the open subscription, which is cancelled to stop delivery
+     */
+    public IRCSubscription subscribe(IRCMessageListener listener, final Consumer<IRCMessage> handler, Executor executor) {
+        Flow.Subscriber<IRCMessage> subscriber = new Flow.Subscriber<IRCMessage>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(IRCMessage message) {
+                handler.accept(message);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (verbosity >= VERBOSITY_LOW) {
+                    System.out.println(throwable);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+
+            }
+        };
+        return subscribe(listener, subscriber, executor, IRCMailbox.DEFAULT_CAPACITY, IRCOverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Returns a publisher of every matching message, delivered on the
+     * server's executor. Each subscriber gets its own subscription which
+     * holds up to the default capacity of messages it has not requested yet,
+     * after which the oldest is dropped and counted. Subscribers are
+     * completed when the connection is closed for good.
+     *
+     * @param listener the listener selecting the messages to publish
+     * @return a publisher of the matching messages
+     */
+    public Flow.Publisher<IRCMessage> publisher(IRCMessageListener listener) {
+        return publisher(listener, getExecutor(), IRCMailbox.DEFAULT_CAPACITY, IRCOverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Returns a publisher of every matching message
+     *
+     * @param listener the listener selecting the messages to publish
+     * @param executor the executor subscribers are called on
+     * @param capacity the maximum number of messages a subscription holds
+     * before the overflow policy applies
+     * @param policy what to do when a message arrives while a subscription is
+     * full
+     * @return a publisher of the matching messages
+     */
+    public Flow.Publisher<IRCMessage> publisher(final IRCMessageListener listener, final Executor executor,
+            final int capacity, final IRCOverflowPolicy policy) {
+        return new Flow.Publisher<IRCMessage>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super IRCMessage> subscriber) {
+                IRCServer.this.subscribe(listener, subscriber, executor, capacity, policy);
+            }
+        };
+    }
+
+    /**
+     * Opens a subscription, completing it straight away if the connection is
+     * already closed
+     */
+    private IRCSubscription subscribe(IRCMessageListener listener, Flow.Subscriber<? super IRCMessage> subscriber,
+            Executor executor, int capacity, IRCOverflowPolicy policy) {
+        IRCSubscription subscription = new IRCSubscription(this, listener, subscriber, executor, capacity, policy);
+        subscription.open();
+        if (getState() == IRCConnectionState.CLOSED) {
+            subscription.complete();
+        }
+        return subscription;
+    }
+
+    // Queries
+    /**
+     * Sends a query and collects its replies, waiting up to the default
+     * timeout for the end numeric
+     *
+     * @param query the query to send
+     * @return a future completed with every reply, including the end numeric
+     */
+    public CompletableFuture<List<IRCMessage>> query(IRCQuery query) {
+        return query(query, IRCQuery.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Sends a query and collects its replies. Queries do not wait for each
+     * other: the command is sent straight away and replies are matched to the
+     * oldest pending query with the same target. The future is completed on
+     * the server's executor; it fails with an IRCException on an error
+     * numeric or when the connection is lost, and with a TimeoutException if
+     * the end numeric does not arrive in time.
+     *
+     * @param query the query to send
+     * @param timeout the maximum time to wait in milliseconds, or 0 to wait
+     * until the connection is lost
+     * @return a future completed with every reply, including the end numeric
+     */
+    public CompletableFuture<List<IRCMessage>> query(final IRCQuery query, long timeout) {
+        final CompletableFuture<List<IRCMessage>> future = new CompletableFuture<>();
+        if (getState() == IRCConnectionState.CLOSED) {
+            future.completeExceptionally(new IRCException("Connection closed"));
+            return future;
+        }
+
+        final IRCQueryQueue.Pending entry = queries.add(query, future);
+        final long limit = timeout;
+        final long grace = Math.max(timeout, IRCQuery.DEFAULT_TIMEOUT);
+        if (timeout > 0) {
+            entry.timeout = IRCTimer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (abandon(entry, grace)) {
+                        future.completeExceptionally(new TimeoutException(query.getCommand() + " got no reply within " + limit + "ms"));
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        future.whenComplete(new BiConsumer<List<IRCMessage>, Throwable>() {
+            @Override
+            public void accept(List<IRCMessage> replies, Throwable error) {
+                // Cancelled by the caller; late replies must not reach a
+                // later query
+                abandon(entry, grace);
+            }
+        });
+
+        send(query.getCommand());
+        return future;
+    }
+
+    /**
+     * Gives up on a query, which keeps absorbing its late replies for a grace
+     * period before they are considered lost
+     *
+     * @return true if the query was still waiting for replies
+     */
+    private boolean abandon(final IRCQueryQueue.Pending entry, long grace) {
+        if (!queries.abandon(entry)) {
+            return false;
+        }
+        IRCTimer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                queries.retire(entry);
+            }
+        }, grace, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Looks up a nick with WHOIS
+     *
+     * @param nick the nick to look up
+     * @return a future completed with the WHOIS replies
+     */
+    public CompletableFuture<List<IRCMessage>> whois(String nick) {
+        return query(IRCQuery.whois(nick));
+    }
+
+    /**
+     * Lists the members of a channel with NAMES
+     *
+     * @param channel the channel to list
+     * @return a future completed with the NAMES replies
+     */
+    public CompletableFuture<List<IRCMessage>> names(String channel) {
+        return query(IRCQuery.names(channel));
+    }
+
+    /**
+     * Lists channels with LIST
+     *
+     * @param channels the channels to list, or none for every channel
+     * @return a future completed with the LIST replies
+     */
+    public CompletableFuture<List<IRCMessage>> list(String... channels) {
+        return query(IRCQuery.list(channels));
+    }
+
+    /**
+     * Queries the modes of a channel
+     *
+     * @param channel the channel to query
+     * @return a future completed with the RPL_CHANNELMODEIS reply
+     */
+    public CompletableFuture<List<IRCMessage>> mode(String channel) {
+        return query(IRCQuery.mode(channel));
+    }
+
+    /**
+     * Returns the number of queries waiting for their replies. Queries which
+     * timed out or were cancelled are counted until their end numeric
+     * arrives.
+     *
+     * @return the number of pending queries
+     */
+    public int pendingQueries() {
+        return queries.size();
+    }
+
+    /**
+     * Compares an incoming message to all of the current requests. If any
+     * requests match they are cleared and unblocked. No lock is held while
+     * listeners run, so requests may be added and removed concurrently.
+     *
+     * @param message message to validate
+     */
+    protected void validate(IRCMessage message) {
+        if (verbosity >= VERBOSITY_HIGH) {
+            System.out.println(message);
+        } else if (verbosity >= VERBOSITY_MEDIUM) {
+            System.out.println(message + " [" + requests.size() + "]");
+        }
+
+        // Only the requests which could match are checked
+        requests.dispatch(message);
+    }
+
+    /**
+     * Runs a subroutine on the server's executor. Unless one was set with
+     * setExecutor, this is the pool shared by every server.
+     *
+     * @param subroutine the subroutine to run
+     * @throws IRCException if the executor rejects the subroutine
+     */
+    public void runSubroutine(IRCSubroutine subroutine) {
+        runSubroutine(subroutine, getExecutor());
+    }
+
+    /**
+     * Runs a subroutine on the specified executor. If the executor has no
+     * free thread the subroutine is counted as queued until it starts.
+     *
+     * @param subroutine the subroutine to run
+     * @param executor the executor to run the subroutine on
+     * @throws IRCException if the executor rejects the subroutine
+     */
+    public void runSubroutine(IRCSubroutine subroutine, Executor executor) {
+        Runnable task = prepare(subroutine, "");
+
+        queuedSubroutines.incrementAndGet();
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            queuedSubroutines.decrementAndGet();
+            throw new IRCException(e);
+        }
+    }
+
+    /**
+     * Places a subroutine on its own thread and runs it, monitoring it. By
+     * default the subroutine will be run on a daemon thread.
+     *
+     * @param subroutine the subroutine to run
+     * @param priority the Thread priority to give the subroutine
+     * @throws UnsupportedOperationException if this is called before starting
+     * the server
+     */
+    public void runSubroutine(IRCSubroutine subroutine, int priority) {
+        runSubroutine(subroutine, priority, true);
     }
 
     /**
@@ -504,36 +1657,163 @@ public final class IRCServer {
      * the server
      */
     public void runSubroutine(IRCSubroutine subroutine, int priority, boolean daemon) {
+        Runnable task = prepare(subroutine, " P" + priority + (daemon ? " +D" : " -D"));
+
+        // Virtual threads are always daemons and ignore priorities
+        Thread thread;
+        if (virtualThreads) {
+            thread = IRCVirtualThreads.newThread(task);
+        } else {
+            thread = new Thread(task);
+            thread.setPriority(priority);
+            thread.setDaemon(daemon);
+        }
+        queuedSubroutines.incrementAndGet();
+        thread.start();
+    }
+
+    /**
+     * Binds a subroutine to the server and wraps it in a task which keeps the
+     * subroutine counters up to date
+     */
+    private Runnable prepare(IRCSubroutine subroutine, String info) {
         final IRCSubroutine sub = subroutine;
         sub.server = this;
+        sub.setup();
 
         if (verbosity >= VERBOSITY_HIGH) {
-            System.out.println("[$] Subroutine [" + subroutine.getClass().getSimpleName() + "] P" + priority + (daemon ? " +D" : " -D"));
+            System.out.println("[$] Subroutine [" + subroutine.getClass().getSimpleName() + "]" + info);
         } else if (verbosity >= VERBOSITY_MEDIUM) {
             System.out.println("[$] Subroutine [" + subroutine.getClass().getSimpleName());
         }
 
-        Thread thread = new Thread(new Runnable() {
+        return new Runnable() {
             @Override
             public void run() {
-                activeThreadCount++;
-                sub.run();
-                activeThreadCount--;
+                queuedSubroutines.decrementAndGet();
+                runningSubroutines.incrementAndGet();
+                try {
+                    sub.run();
+                } finally {
+                    runningSubroutines.decrementAndGet();
+                    completedSubroutines.incrementAndGet();
+                }
             }
-        });
+        };
+    }
 
-        thread.setPriority(priority);
-        thread.setDaemon(daemon);
-        thread.start();
+    /**
+     * Sets the executor used by runSubroutine. Passing null reverts to the
+     * pool shared by every server. A bounded executor caps the number of
+     * threads used by subroutines; subroutines beyond the cap wait in its
+     * queue until another subroutine returns, so the cap must cover every
+     * subroutine which runs for the lifetime of the connection.
+     *
+     * @param executor the executor to use, or null for the shared pool
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+        this.virtualThreads = false;
+    }
+
+    /**
+     * Returns the executor used by runSubroutine
+     *
+     * @return the executor used by runSubroutine
+     */
+    public Executor getExecutor() {
+        Executor e = executor;
+        return e == null ? getSharedExecutor() : e;
+    }
+
+    /**
+     * Returns the pool shared by every server which was not given its own
+     * executor. Unless replaced, it creates low-priority daemon threads on
+     * demand and lets idle ones expire after a minute.
+     * <p>
+     * The pool is deliberately unbounded and never queues. Most subroutines
+     * block for as long as their connection lasts, so a subroutine queued
+     * behind them, such as the one completing registration, might never
+     * start. To cap thread usage, use virtual threads or a bounded executor
+     * sized for the expected subroutines.
+     *
+     * @return the shared subroutine executor
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new IRCThreadFactory("IRCSubroutine", Thread.MIN_PRIORITY));
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Replaces the pool shared by every server which was not given its own
+     * executor. The previous pool is not shut down.
+     *
+     * @param executor the new shared executor
+     */
+    public static synchronized void setSharedExecutor(ExecutorService executor) {
+        sharedExecutor = executor;
+    }
+
+    /**
+     * Runs subsequent subroutines on virtual threads instead of platform
+     * threads. Requires JDK 21 or later. Subroutines blocked waiting for a
+     * message do not hold on to a carrier thread, so many thousands can be
+     * run at once. Priority and daemon settings are ignored in this mode.
+     * Enabling this replaces the server's executor; disabling it reverts to
+     * the shared pool.
+     *
+     * @param enabled true to use virtual threads
+     * @throws UnsupportedOperationException if enabling on a runtime without
+     * virtual threads
+     */
+    public void setVirtualThreads(boolean enabled) {
+        if (enabled && !IRCVirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+        }
+        this.executor = enabled ? IRCVirtualThreads.sharedExecutor() : null;
+        this.virtualThreads = enabled;
+    }
+
+    /**
+     * Returns true if subroutines are run on virtual threads
+     *
+     * @return true if subroutines are run on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
     }
 
     /**
-     * Returns the number of active threads managed by the system
+     * Returns the number of subroutines currently running
      *
-     * @return the number of active threads managed by the system
+     * @return the number of subroutines currently running
      */
     public int activeThreads() {
-        return activeThreadCount;
+        return runningSubroutines.get();
+    }
+
+    /**
+     * Returns the number of subroutines submitted but not yet started, for
+     * example because a bounded executor has no free thread. The shared pool
+     * never queues, so this stays at zero unless setExecutor was given a
+     * bounded executor.
+     *
+     * @return the number of queued subroutines
+     */
+    public int queuedSubroutines() {
+        return queuedSubroutines.get();
+    }
+
+    /**
+     * Returns the number of subroutines which have returned or thrown
+     *
+     * @return the number of completed subroutines
+     */
+    public long completedSubroutines() {
+        return completedSubroutines.get();
     }
 
     /**
@@ -553,16 +1833,70 @@ public final class IRCServer {
      * @return an IRCChannel entity or null
      */
     public IRCChannel getChannel(String name) {
-        String key = name.toLowerCase();
-        IRCChannel instance = channels.get(key);
+        return getChannel(name, 0, name.length());
+    }
+
+    /**
+     * Returns the IRCChannel entity of a message's receiver, creating it if
+     * needed. The receiver is looked up in place in the raw message, so known
+     * channels are found without allocating.
+     *
+     * @param message a message sent to a channel
+     * @return an IRCChannel entity
+     */
+    public IRCChannel getChannel(IRCMessage message) {
+        return getChannel(message.getRaw(), message.receiverStart(), message.receiverEnd());
+    }
+
+    private IRCChannel getChannel(String source, int start, int end) {
+        IRCChannel instance = findChannel(source, start, end);
         if (instance == null) {
-            instance = new IRCChannel(name, this);
-            channels.put(key, instance);
+            // Writers hold the table's monitor, so a change of case mapping
+            // can not re-key it under them
+            synchronized (channels) {
+                instance = findChannel(source, start, end);
+                if (instance == null) {
+                    String name = source.substring(start, end);
+                    instance = new IRCChannel(name, this);
+                    channels.put(IRCCaseKey.of(name, caseMapping), instance);
+                }
+            }
         }
-
         return instance;
     }
 
+    /**
+     * Returns the IRCChannel entity of the specified name without creating one
+     *
+     * @param name the name of the channel
+     * @return the channel, or null if it is not registered
+     */
+    public IRCChannel findChannel(String name) {
+        return findChannel(name, 0, name.length());
+    }
+
+    /**
+     * Looks up a region of a string with this thread's reusable probe key
+     */
+    private IRCChannel findChannel(CharSequence source, int start, int end) {
+        IRCCaseKey probe = IRCCaseKey.probe(source, start, end, caseMapping);
+        try {
+            return channels.get(probe);
+        } finally {
+            probe.clear();
+        }
+    }
+
+    /**
+     * Returns the case mapping nicknames and channel names are compared
+     * under, as advertised by the server
+     *
+     * @return the current case mapping
+     */
+    public IRCCaseMapping getCaseMapping() {
+        return caseMapping;
+    }
+
     /**
      * Returns a collection of all IRCChannel entries
      *
@@ -581,14 +1915,7 @@ public final class IRCServer {
      * @return an iRCInstance corresponding to the channel
      */
     public IRCChannel registerChannel(String name) {
-        IRCChannel current = channels.get(name.toLowerCase());
-        if (current != null) {
-            return current;
-        }
-
-        IRCChannel c = new IRCChannel(name, this);
-        channels.put(name.toLowerCase(), c);
-        return c;
+        return getChannel(name);
     }
 
     /**
@@ -598,11 +1925,249 @@ public final class IRCServer {
      * @param name the name of the channel
      */
     public void unregisterChannel(String name) {
-        channels.remove(name);
+        IRCChannel removed;
+        synchronized (channels) {
+            IRCCaseKey probe = IRCCaseKey.probe(name, 0, name.length(), caseMapping);
+            try {
+                removed = channels.remove(probe);
+            } finally {
+                probe.clear();
+            }
+        }
+        if (removed != null) {
+            removed.clearUsers();
+        }
+    }
+
+    /**
+     * Returns a user who shares at least one channel with us
+     *
+     * @param nick the user's nickname, in any case
+     * @return the user, or null if they are in none of our channels
+     */
+    public IRCUser getUser(String nick) {
+        IRCCaseKey probe = IRCCaseKey.probe(nick, 0, nick.length(), caseMapping);
+        try {
+            return users.get(probe);
+        } finally {
+            probe.clear();
+        }
+    }
+
+    /**
+     * Returns a collection of every user who shares a channel with us
+     *
+     * @return a collection of IRCUsers
+     */
+    public Collection<IRCUser> getUsers() {
+        return users.values();
+    }
+
+    /**
+     * Returns the number of users who share a channel with us
+     *
+     * @return the number of users
+     */
+    public int userCount() {
+        return users.size();
+    }
+
+    /**
+     * Sets whether the hosts and accounts of a channel's members are fetched
+     * with a WHOX query once its NAMES list is complete. This only applies to
+     * servers which advertise WHOX. The queries go out on the low priority
+     * lane, so joining many channels at once does not hold up other traffic.
+     *
+     * @param whox true to fetch member details after joining
+     */
+    public void setWhox(boolean whox) {
+        this.whox = whox;
+    }
+
+    /**
+     * Returns true if member details are fetched with WHOX after joining
+     *
+     * @return true if WHOX is used when the server supports it
+     */
+    public boolean usesWhox() {
+        return whox && details.support.contains("WHOX");
+    }
+
+    /**
+     * Removes a user from every channel they are in, such as when they quit
+     *
+     * @param nick the user's nickname
+     * @return the removed user, or null if they were not known
+     */
+    public IRCUser removeUser(String nick) {
+        IRCUser user;
+        IRCCaseKey probe = IRCCaseKey.probe(nick, 0, nick.length(), caseMapping);
+        try {
+            user = users.get(probe);
+        } finally {
+            probe.clear();
+        }
+        if (user != null) {
+            // Each channel drops the user from the table along with the
+            // member, and the entry goes with the last of them
+            for (IRCChannel channel : user.getChannels()) {
+                channel.removeUser(nick);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Renames a user in every channel they are in, such as when they change
+     * nicknames. A user already known under the new nickname can only be left
+     * over from a stale table, such as after a missed QUIT; that user is
+     * dropped from the channels the renamed user is not in.
+     *
+     * @param from the old nickname
+     * @param to the new nickname
+     * @return true if the old nickname was known
+     */
+    public boolean renameUser(String from, String to) {
+        IRCUser user;
+        IRCUser stale;
+        synchronized (users) {
+            IRCCaseKey probe = IRCCaseKey.probe(from, 0, from.length(), caseMapping);
+            try {
+                user = users.remove(probe);
+            } finally {
+                probe.clear();
+            }
+            if (user == null) {
+                return false;
+            }
+            user.setNick(to);
+            stale = users.put(IRCCaseKey.of(to, caseMapping), user);
+        }
+        for (IRCChannel channel : user.getChannels()) {
+            channel.renameMember(from, to);
+        }
+
+        // In shared channels the stale member was replaced by the rename;
+        // elsewhere it is removed, so no channel lists a nick the table
+        // does not know
+        if (stale != null && stale != user) {
+            List<IRCChannel> current = user.getChannels();
+            for (IRCChannel channel : stale.getChannels()) {
+                if (!current.contains(channel)) {
+                    channel.removeUser(to);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that a nick is in a channel. Called by IRCChannel when a member
+     * is added.
+     */
+    void trackUser(String nick, IRCChannel channel) {
+        synchronized (users) {
+            IRCCaseKey probe = IRCCaseKey.probe(nick, 0, nick.length(), caseMapping);
+            IRCUser user;
+            try {
+                user = users.get(probe);
+            } finally {
+                probe.clear();
+            }
+            if (user == null) {
+                user = new IRCUser(nick);
+                users.put(IRCCaseKey.of(nick, caseMapping), user);
+            }
+            user.join(channel);
+        }
+    }
+
+    /**
+     * Moves a channel from one nick to another after a member was renamed.
+     * The table is normally renamed first by renameUser, in which case only
+     * the new nick is touched; an entry left under the old nick, tracked
+     * while the rename was in progress, is dropped. Called by IRCChannel.
+     */
+    void retrackUser(String from, String to, IRCChannel channel) {
+        if (IRCCaseKey.of(from, caseMapping).equals(IRCCaseKey.of(to, caseMapping))) {
+            return;
+        }
+        synchronized (users) {
+            untrackUser(from, channel);
+            trackUser(to, channel);
+        }
+    }
+
+    /**
+     * Records that a nick left a channel, dropping the user once they share
+     * no channel with us. Called by IRCChannel when a member is removed.
+     */
+    void untrackUser(String nick, IRCChannel channel) {
+        synchronized (users) {
+            IRCCaseKey probe = IRCCaseKey.probe(nick, 0, nick.length(), caseMapping);
+            try {
+                IRCUser user = users.get(probe);
+                if (user != null && user.part(channel)) {
+                    users.remove(probe);
+                }
+            } finally {
+                probe.clear();
+            }
+        }
+    }
+
+    /**
+     * Switches channel and user keys to a new case mapping. Servers advertise
+     * their mapping after registration, so channels may already be known by
+     * then. Both tables are re-keyed while holding the monitors their writers
+     * hold, and the mapping changes with them, so no insert is made under the
+     * old mapping or lost to the re-key.
+     */
+    private void setCaseMapping(IRCCaseMapping mapping) {
+        List<IRCChannel> all;
+        synchronized (channels) {
+            synchronized (users) {
+                if (mapping == caseMapping) {
+                    return;
+                }
+                caseMapping = mapping;
+                all = new ArrayList<>(channels.values());
+                channels.clear();
+                for (IRCChannel channel : all) {
+                    channels.putIfAbsent(IRCCaseKey.of(channel.getName(), mapping), channel);
+                }
+                List<IRCUser> known = new ArrayList<>(users.values());
+                users.clear();
+                for (IRCUser user : known) {
+                    users.put(IRCCaseKey.of(user.getNick(), mapping), user);
+                }
+            }
+        }
+
+        // Members are re-keyed under each channel's own lock, which is never
+        // taken while holding the user table
+        for (IRCChannel channel : all) {
+            channel.setCaseMapping(mapping);
+        }
     }
 
     @Override
     public String toString() {
         return "Server@" + socket.getLocalAddress() + ":" + socket.getRemotePort() + " <" + channels.size() + ">";
     }
+
+    /**
+     * A connection state and the future completed once the connection is
+     * READY, which are always replaced together
+     */
+    private static final class Status {
+
+        private final IRCConnectionState state;
+        private final CompletableFuture<IRCServer> ready;
+
+        private Status(IRCConnectionState state, CompletableFuture<IRCServer> ready) {
+            this.state = state;
+            this.ready = ready;
+        }
+    }
 }
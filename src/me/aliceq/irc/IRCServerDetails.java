@@ -23,9 +23,14 @@
  */
 package me.aliceq.irc;
 
+import java.util.Collections;
+import java.util.Set;
+
 /**
  * Data class containing details about an IRCServer. It is recommended to use
- * this as read-only.
+ * this as read-only. Fields are volatile, since they are written by the reader
+ * and subroutine threads; to wait for the connection to be ready, use
+ * IRCServer.awaitReady or a connection listener rather than polling.
  *
  * @author Alice Quiros <email@aliceq.me>
  */
@@ -34,42 +39,59 @@ public class IRCServerDetails {
     /**
      * Identity used to connect to server
      */
-    public IRCIdentity identity;
+    public volatile IRCIdentity identity;
 
     /**
      * Current nickname
      */
-    public String currentNick;
+    public volatile String currentNick;
     
     /**
      * Server socket connection status
      */
-    public boolean socketConnected;
+    public volatile boolean socketConnected;
     /**
      * Server socket connection port
      */
-    public int socketPort;
+    public volatile int socketPort;
     /**
      * Server socket connection address
      */
-    public String socketAddress;
+    public volatile String socketAddress;
 
     /**
      * True when a connection to the IRC server is established
      */
-    public boolean connected;
+    public volatile boolean connected;
     /**
      * True when the current nickname is identified with NickServ
      */
-    public boolean identified;
+    public volatile boolean identified;
     /**
      * True if the current nickname is already registered with NickServ
      */
-    public boolean registered;
+    public volatile boolean registered;
 
     /**
      * True if the current nick was taken
      */
-    public boolean nickIsTaken;
+    public volatile boolean nickIsTaken;
+
+    /**
+     * Features the server advertised in RPL_ISUPPORT (005), such as the line
+     * length, case mapping, membership prefixes, target limits and channel
+     * types. Each 005 line replaces this with a new immutable snapshot, and a
+     * new connection resets it.
+     */
+    public volatile IRCSupport support = IRCSupport.EMPTY;
+
+    /**
+     * IRCv3 capabilities the server acknowledged during registration
+     */
+    public volatile Set<String> capabilities = Collections.emptySet();
+    /**
+     * Account we are logged in to, as reported by RPL_LOGGEDIN, or null
+     */
+    public volatile String account;
 
 }
@@ -23,6 +23,7 @@
  */
 package me.aliceq.irc;
 
+import me.aliceq.irc.internal.IRCMailbox;
 import me.aliceq.irc.internal.IRCMessageRequest;
 
 /**
@@ -60,7 +61,7 @@ public abstract class IRCSubroutine {
     }
 
     // Receive messages
-    public final synchronized IRCMessage getMessage() {
+    public final IRCMessage getMessage() {
         try {
             return getMessage(0);
         } catch (InterruptedException e) {
@@ -68,7 +69,7 @@ public abstract class IRCSubroutine {
         }
     }
 
-    public final synchronized IRCMessage getMessage(String sender) {
+    public final IRCMessage getMessage(String sender) {
         try {
             return getMessage(sender, 0);
         } catch (InterruptedException e) {
@@ -76,7 +77,7 @@ public abstract class IRCSubroutine {
         }
     }
 
-    public final synchronized IRCMessage getMessage(IRCMessageListener listener) {
+    public final IRCMessage getMessage(IRCMessageListener listener) {
         try {
             return getMessage(listener, 0);
         } catch (InterruptedException e) {
@@ -84,27 +85,59 @@ public abstract class IRCSubroutine {
         }
     }
 
-    public final synchronized IRCMessage getMessage(int timeout) throws InterruptedException {
+    public final IRCMessage getMessage(int timeout) throws InterruptedException {
         IRCMessageRequest request = new IRCMessageRequest(server, IRCMessageListener.ANY);
         return request.push(timeout);
     }
 
-    public final synchronized IRCMessage getMessage(final String sender, int timeout) throws InterruptedException {
-        final String s = sender;
-        IRCMessageRequest request = new IRCMessageRequest(server, new IRCMessageListener() {
-            @Override
-            public boolean check(IRCMessage message) {
-                return message.getSender().equals(s);
-            }
-        });
+    public final IRCMessage getMessage(final String sender, int timeout) throws InterruptedException {
+        IRCMessageRequest request = new IRCMessageRequest(server, IRCMessageFilter.sender(sender));
         return request.push(timeout);
     }
 
-    public final synchronized IRCMessage getMessage(IRCMessageListener listener, int timeout) throws InterruptedException {
+    public final IRCMessage getMessage(IRCMessageListener listener, int timeout) throws InterruptedException {
         IRCMessageRequest request = new IRCMessageRequest(server, listener);
         return request.push(timeout);
     }
 
+    // Subscriptions
+    /**
+     * Opens a persistent subscription which queues every matching message
+     * until it is read, so nothing is missed between reads. Uses the default
+     * capacity and drops the oldest message when full.
+     *
+     * @param listener the listener selecting the messages to queue
+     * @return an open mailbox
+     */
+    public final IRCMailbox subscribe(IRCMessageListener listener) {
+        return subscribe(listener, IRCMailbox.DEFAULT_CAPACITY, IRCOverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Opens a persistent subscription which queues every matching message
+     * until it is read, so nothing is missed between reads
+     *
+     * @param listener the listener selecting the messages to queue
+     * @param capacity the maximum number of queued messages
+     * @param policy what to do when a message arrives while the mailbox is
+     * full
+     * @return an open mailbox
+     */
+    public final IRCMailbox subscribe(IRCMessageListener listener, int capacity, IRCOverflowPolicy policy) {
+        IRCMailbox mailbox = new IRCMailbox(server, listener, capacity, policy);
+        mailbox.open();
+        return mailbox;
+    }
+
+    /**
+     * Called by the server on the thread calling runSubroutine, before the
+     * subroutine's own thread starts. Subscriptions opened here see every
+     * message received after runSubroutine was called.
+     */
+    protected void setup() {
+
+    }
+
     // Abstract
     public abstract void run();
 }
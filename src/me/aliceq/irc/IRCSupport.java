@@ -0,0 +1,379 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Features advertised by the server in RPL_ISUPPORT (005) replies. Instances
+ * are immutable; every 005 line produces a new snapshot, so readers can keep
+ * a reference without locking.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCSupport {
+
+    /**
+     * Maximum line length, including the line terminator, when the server
+     * does not advertise LINELEN
+     */
+    public static final int DEFAULT_LINE_LENGTH = 512;
+
+    /**
+     * Channel membership modes assumed when the server does not advertise
+     * PREFIX
+     */
+    public static final String DEFAULT_PREFIX_MODES = "ov";
+    /**
+     * Nickname prefixes of the default membership modes
+     */
+    public static final String DEFAULT_PREFIX_SYMBOLS = "@+";
+    /**
+     * Channel modes assumed when the server does not advertise CHANMODES, as
+     * in RFC 2811
+     */
+    public static final String DEFAULT_CHANMODES = "beI,k,l,imnpst";
+    /**
+     * Channel name prefixes assumed when the server does not advertise
+     * CHANTYPES
+     */
+    public static final String DEFAULT_CHANNEL_TYPES = "#&";
+
+    /**
+     * A server which has not advertised anything
+     */
+    public static final IRCSupport EMPTY = new IRCSupport(Collections.<String, String>emptyMap());
+
+    private final Map<String, String> tokens;
+    private final int lineLength;
+    private final Map<String, Integer> targetMax;
+    private final IRCCaseMapping caseMapping;
+    private final String prefixModes;
+    private final String prefixSymbols;
+    private final IRCModeType[] modeTypes = new IRCModeType[128];
+    private final String channelTypes;
+    private final boolean[] channelType = new boolean[128];
+
+    private IRCSupport(Map<String, String> tokens) {
+        this.tokens = tokens;
+        this.lineLength = Math.max(DEFAULT_LINE_LENGTH, parseInt(tokens.get("LINELEN"), DEFAULT_LINE_LENGTH));
+        this.targetMax = parseTargetMax(tokens.get("TARGMAX"));
+        this.caseMapping = IRCCaseMapping.forToken(tokens.get("CASEMAPPING"));
+
+        // PREFIX=(modes)symbols, highest rank first
+        String prefix = tokens.get("PREFIX");
+        int close = prefix == null ? -1 : prefix.indexOf(')');
+        if (prefix != null && prefix.startsWith("(") && close > 0 && prefix.length() - close - 1 == close - 1) {
+            this.prefixModes = prefix.substring(1, close);
+            this.prefixSymbols = prefix.substring(close + 1);
+        } else if (prefix != null && prefix.isEmpty()) {
+            this.prefixModes = "";
+            this.prefixSymbols = "";
+        } else {
+            this.prefixModes = DEFAULT_PREFIX_MODES;
+            this.prefixSymbols = DEFAULT_PREFIX_SYMBOLS;
+        }
+
+        // CHANTYPES=#&, where an empty value means there are no channels
+        String chantypes = tokens.get("CHANTYPES");
+        this.channelTypes = chantypes == null ? DEFAULT_CHANNEL_TYPES : chantypes;
+        for (int i = 0; i < channelTypes.length(); i++) {
+            char type = channelTypes.charAt(i);
+            if (type < channelType.length) {
+                channelType[type] = true;
+            }
+        }
+
+        // CHANMODES=A,B,C,D; later types may be added, and are treated as D
+        String chanmodes = tokens.get("CHANMODES");
+        String[] groups = (chanmodes == null ? DEFAULT_CHANMODES : chanmodes).split(",", -1);
+        IRCModeType[] kinds = {IRCModeType.LIST, IRCModeType.PARAMETER, IRCModeType.SET_PARAMETER, IRCModeType.FLAG};
+        for (int i = 0; i < groups.length; i++) {
+            IRCModeType kind = kinds[Math.min(i, kinds.length - 1)];
+            for (int j = 0; j < groups[i].length(); j++) {
+                char mode = groups[i].charAt(j);
+                if (mode < modeTypes.length) {
+                    modeTypes[mode] = kind;
+                }
+            }
+        }
+        for (int i = 0; i < prefixModes.length(); i++) {
+            char mode = prefixModes.charAt(i);
+            if (mode < modeTypes.length) {
+                modeTypes[mode] = IRCModeType.PREFIX;
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot with the tokens of an RPL_ISUPPORT message added.
+     * Tokens of the form -KEY remove an earlier advertisement.
+     *
+     * @param message an RPL_ISUPPORT message
+     * @return the new snapshot, or this one if nothing changed
+     */
+    IRCSupport merge(IRCMessage message) {
+        int count = message.getParamCount();
+        // The first parameter is our nick and the last is the human-readable text
+        String last = message.getParam(count - 1);
+        int end = last != null && last.indexOf(' ') >= 0 ? count - 1 : count;
+        if (end <= 1) {
+            return this;
+        }
+
+        Map<String, String> merged = new HashMap<>(tokens);
+        for (int i = 1; i < end; i++) {
+            String token = message.getParam(i);
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (token.charAt(0) == '-') {
+                merged.remove(token.substring(1).toUpperCase(Locale.ROOT));
+                continue;
+            }
+            int equals = token.indexOf('=');
+            if (equals < 0) {
+                merged.put(token.toUpperCase(Locale.ROOT), "");
+            } else {
+                merged.put(token.substring(0, equals).toUpperCase(Locale.ROOT), unescape(token.substring(equals + 1)));
+            }
+        }
+        return new IRCSupport(Collections.unmodifiableMap(merged));
+    }
+
+    /**
+     * Returns true if the server advertised a token
+     *
+     * @param token the token name
+     * @return true if the token was advertised
+     */
+    public boolean contains(String token) {
+        return tokens.containsKey(token.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the value of a token
+     *
+     * @param token the token name
+     * @return the value, "" for a token without a value, or null if the token
+     * was not advertised
+     */
+    public String get(String token) {
+        return tokens.get(token.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the numeric value of a token
+     *
+     * @param token the token name
+     * @param fallback the value returned if the token is missing or not a
+     * number
+     * @return the value of the token
+     */
+    public int getInt(String token, int fallback) {
+        return parseInt(get(token), fallback);
+    }
+
+    /**
+     * Returns every advertised token
+     *
+     * @return an unmodifiable map of token names to values
+     */
+    public Map<String, String> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Returns the maximum length of a line, including its terminator
+     *
+     * @return the maximum line length in bytes
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Returns the case mapping names are compared under
+     *
+     * @return the advertised case mapping, RFC1459 if none
+     */
+    public IRCCaseMapping getCaseMapping() {
+        return caseMapping;
+    }
+
+    /**
+     * Returns the channel membership modes, highest rank first, such as "ov"
+     *
+     * @return the membership mode letters
+     */
+    public String getPrefixModes() {
+        return prefixModes;
+    }
+
+    /**
+     * Returns the nickname prefixes of the membership modes, in the same
+     * order, such as "@+"
+     *
+     * @return the membership prefix symbols
+     */
+    public String getPrefixSymbols() {
+        return prefixSymbols;
+    }
+
+    /**
+     * Returns the rank of a membership prefix symbol. Rank 0 is the highest.
+     *
+     * @param symbol a nickname prefix, such as '@'
+     * @return the rank, or -1 if the character is not a prefix
+     */
+    public int prefixRank(char symbol) {
+        return prefixSymbols.indexOf(symbol);
+    }
+
+    /**
+     * Returns the rank of a membership mode letter. Rank 0 is the highest.
+     *
+     * @param mode a mode letter, such as 'o'
+     * @return the rank, or -1 if the mode is not a membership mode
+     */
+    public int modeRank(char mode) {
+        return prefixModes.indexOf(mode);
+    }
+
+    /**
+     * Returns the characters channel names may start with, from CHANTYPES
+     *
+     * @return the channel prefixes
+     */
+    public String getChannelTypes() {
+        return channelTypes;
+    }
+
+    /**
+     * Returns true if a channel name may start with a character
+     *
+     * @param type the first character of a name
+     * @return true if the character is a channel prefix
+     */
+    public boolean isChannelType(char type) {
+        return type < channelType.length && channelType[type];
+    }
+
+    /**
+     * Returns true if a name is a channel name rather than a nickname
+     *
+     * @param name the name
+     * @return true if the name starts with a channel prefix
+     */
+    public boolean isChannel(CharSequence name) {
+        return name.length() > 0 && isChannelType(name.charAt(0));
+    }
+
+    /**
+     * Returns how a channel mode takes its parameter. Modes the server did
+     * not advertise are taken to be flags.
+     *
+     * @param mode the mode letter
+     * @return the type of the mode
+     */
+    public IRCModeType getModeType(char mode) {
+        IRCModeType type = mode < modeTypes.length ? modeTypes[mode] : null;
+        return type == null ? IRCModeType.FLAG : type;
+    }
+
+    /**
+     * Returns how many comma-separated targets a command accepts, from
+     * TARGMAX or the older MAXTARGETS token. Without either, only one target
+     * is assumed.
+     *
+     * @param command the command, such as PRIVMSG
+     * @return the maximum number of targets, Integer.MAX_VALUE if unlimited
+     */
+    public int getTargetMax(String command) {
+        if (targetMax != null) {
+            Integer max = targetMax.get(command.toUpperCase(Locale.ROOT));
+            return max == null ? 1 : max;
+        }
+        return Math.max(1, getInt("MAXTARGETS", 1));
+    }
+
+    private static Map<String, Integer> parseTargetMax(String value) {
+        if (value == null) {
+            return null;
+        }
+        Map<String, Integer> result = new HashMap<>();
+        for (String entry : value.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon > 0) {
+                String limit = entry.substring(colon + 1);
+                result.put(entry.substring(0, colon).toUpperCase(Locale.ROOT),
+                        limit.isEmpty() ? Integer.MAX_VALUE : Math.max(1, parseInt(limit, 1)));
+            }
+        }
+        return result;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Replaces \xHH escapes in a token value
+     */
+    private static String unescape(String value) {
+        int escape = value.indexOf("\\x");
+        if (escape < 0) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(value.length());
+        int i = 0;
+        while (escape >= 0 && escape + 4 <= value.length()) {
+            builder.append(value, i, escape);
+            try {
+                builder.append((char) Integer.parseInt(value.substring(escape + 2, escape + 4), 16));
+            } catch (NumberFormatException e) {
+                builder.append(value, escape, escape + 4);
+            }
+            i = escape + 4;
+            escape = value.indexOf("\\x", i);
+        }
+        builder.append(value, i, value.length());
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "IRCSupport" + tokens;
+    }
+}
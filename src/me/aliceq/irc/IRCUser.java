@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A user seen in at least one of the channels we are in. The server keeps one
+ * instance per nickname along with the channels the user shares with us, so
+ * a QUIT or NICK only touches those channels. Most users share a single
+ * channel with us, so that channel is held directly; users in several are
+ * given a small array which is copied on change.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCUser {
+
+    private volatile String nick;
+    private volatile String hostmask;
+    private volatile String account;
+    // null, a single IRCChannel, or an IRCChannel[] of two or more
+    private volatile Object channels;
+
+    IRCUser(String nick) {
+        this.nick = nick;
+    }
+
+    /**
+     * Returns the user's current nickname
+     *
+     * @return the nickname
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * Returns a snapshot of the channels the user shares with us
+     *
+     * @return an unmodifiable list of channels
+     */
+    public List<IRCChannel> getChannels() {
+        Object current = channels;
+        if (current == null) {
+            return Collections.emptyList();
+        } else if (current instanceof IRCChannel) {
+            return Collections.singletonList((IRCChannel) current);
+        }
+        return Collections.unmodifiableList(Arrays.asList((IRCChannel[]) current));
+    }
+
+    /**
+     * Returns the number of channels the user shares with us
+     *
+     * @return the number of channels
+     */
+    public int channelCount() {
+        Object current = channels;
+        if (current == null) {
+            return 0;
+        } else if (current instanceof IRCChannel) {
+            return 1;
+        }
+        return ((IRCChannel[]) current).length;
+    }
+
+    /**
+     * Returns true if the user is in a channel
+     *
+     * @param channel the channel
+     * @return true if the user is in the channel
+     */
+    public boolean isIn(IRCChannel channel) {
+        Object current = channels;
+        if (current instanceof IRCChannel[]) {
+            return indexOf((IRCChannel[]) current, channel) >= 0;
+        }
+        return current == channel && channel != null;
+    }
+
+    /**
+     * Returns the user's user@host, if it has been seen in a JOIN or a WHO
+     * reply
+     *
+     * @return the user@host, or null if not known
+     */
+    public String getHostMask() {
+        return hostmask;
+    }
+
+    /**
+     * Sets the user's user@host
+     *
+     * @param hostmask the user@host
+     */
+    public void setHostMask(String hostmask) {
+        this.hostmask = hostmask;
+    }
+
+    /**
+     * Returns the services account the user is logged in to, if it has been
+     * seen in a WHOX reply
+     *
+     * @return the account name, or null if not known or not logged in
+     */
+    public String getAccount() {
+        return account;
+    }
+
+    /**
+     * Sets the services account the user is logged in to
+     *
+     * @param account the account name, or null if not logged in
+     */
+    public void setAccount(String account) {
+        this.account = account;
+    }
+
+    void setNick(String nick) {
+        this.nick = nick;
+    }
+
+    /**
+     * Adds a channel to the user. Callers hold the server's user table lock.
+     */
+    void join(IRCChannel channel) {
+        Object current = channels;
+        if (current == null) {
+            channels = channel;
+        } else if (current instanceof IRCChannel) {
+            if (current != channel) {
+                channels = new IRCChannel[]{(IRCChannel) current, channel};
+            }
+        } else {
+            IRCChannel[] array = (IRCChannel[]) current;
+            if (indexOf(array, channel) < 0) {
+                IRCChannel[] grown = Arrays.copyOf(array, array.length + 1);
+                grown[array.length] = channel;
+                channels = grown;
+            }
+        }
+    }
+
+    /**
+     * Removes a channel from the user. Callers hold the server's user table
+     * lock.
+     *
+     * @return true if the user is no longer in any channel
+     */
+    boolean part(IRCChannel channel) {
+        Object current = channels;
+        if (current == channel) {
+            channels = null;
+        } else if (current instanceof IRCChannel[]) {
+            IRCChannel[] array = (IRCChannel[]) current;
+            int index = indexOf(array, channel);
+            if (index >= 0) {
+                if (array.length == 2) {
+                    channels = array[1 - index];
+                } else {
+                    IRCChannel[] shrunk = new IRCChannel[array.length - 1];
+                    System.arraycopy(array, 0, shrunk, 0, index);
+                    System.arraycopy(array, index + 1, shrunk, index, shrunk.length - index);
+                    channels = shrunk;
+                }
+            }
+        }
+        return channels == null;
+    }
+
+    private static int indexOf(IRCChannel[] channels, IRCChannel channel) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == channel) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return nick + " " + getChannels();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import me.aliceq.irc.IRCLatencyHistogram;
+import me.aliceq.irc.IRCPriority;
+
+/**
+ * Keepalive for a single connection. It sends a PING of its own every
+ * interval, records the round-trip time of each reply, and reports the
+ * connection dead once nothing at all has been received for the timeout. This
+ * catches half-open connections which the operating system would only notice
+ * after many minutes.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCKeepalive {
+
+    /**
+     * Prefix of the tokens sent with our own PINGs
+     */
+    public static final String TOKEN_PREFIX = "keepalive-";
+
+    private final IRCOutbound outbound;
+    private final IRCLatencyHistogram latency;
+    private final Runnable onTimeout;
+    private volatile long interval;
+    private volatile long timeout;
+    private final AtomicBoolean expired = new AtomicBoolean();
+
+    private volatile long lastReceived = System.nanoTime();
+    private volatile long pingSent;
+    private volatile String token;
+    private long sequence;
+    private ScheduledFuture<?> task;
+
+    /**
+     * Constructor
+     *
+     * @param outbound the queue our PINGs are sent through
+     * @param latency the histogram round-trip times are recorded in
+     * @param interval milliseconds between our PINGs, or 0 to never send any
+     * @param timeout milliseconds of silence after which the connection is
+     * dead, or 0 to never time out
+     * @param onTimeout run once, on the timer thread, when the connection is
+     * found dead
+     */
+    public IRCKeepalive(IRCOutbound outbound, IRCLatencyHistogram latency, long interval, long timeout, Runnable onTimeout) {
+        this.outbound = outbound;
+        this.latency = latency;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, interval));
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+        this.onTimeout = onTimeout;
+    }
+
+    /**
+     * Starts the periodic checks. This does nothing if both the interval and
+     * the timeout are 0.
+     */
+    public synchronized void start() {
+        if (task != null || (interval == 0 && timeout == 0)) {
+            return;
+        }
+        long shortest = interval == 0 ? timeout : timeout == 0 ? interval : Math.min(interval, timeout);
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(50), shortest / 4);
+        lastReceived = System.nanoTime();
+        pingSent = lastReceived;
+        task = IRCTimer.get().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Changes the interval and timeout, restarting the periodic checks if
+     * they were running
+     *
+     * @param interval milliseconds between our PINGs, or 0 to never send any
+     * @param timeout milliseconds of silence after which the connection is
+     * dead, or 0 to never time out
+     */
+    public synchronized void configure(long interval, long timeout) {
+        boolean running = task != null;
+        stop();
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, interval));
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+        if (running) {
+            start();
+        }
+    }
+
+    /**
+     * Stops the periodic checks
+     */
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Records that a line was received. Called for every line, so this is a
+     * single volatile write.
+     */
+    public void received() {
+        lastReceived = System.nanoTime();
+    }
+
+    /**
+     * Handles the parameter of a PONG. If it answers our outstanding PING its
+     * round-trip time is recorded.
+     *
+     * @param reply the token echoed by the server
+     * @return true if the PONG answered our PING
+     */
+    public boolean pong(String reply) {
+        String expected = token;
+        if (expected == null || !expected.equals(reply)) {
+            return false;
+        }
+        latency.record(System.nanoTime() - pingSent);
+        token = null;
+        return true;
+    }
+
+    /**
+     * Sends a PING if one is due and reports the connection dead if it has
+     * been silent for too long. Runs periodically on the timer thread, and may
+     * also be called by a reader whose socket read timed out.
+     */
+    public void check() {
+        if (expired.get()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (timeout > 0 && now - lastReceived >= timeout) {
+            if (expired.compareAndSet(false, true)) {
+                stop();
+                onTimeout.run();
+            }
+            return;
+        }
+        if (interval > 0 && now - pingSent >= interval) {
+            String next;
+            synchronized (this) {
+                next = TOKEN_PREFIX + (++sequence);
+            }
+            pingSent = now;
+            token = next;
+            outbound.send("PING :" + next, IRCPriority.HIGH);
+        }
+    }
+
+    /**
+     * Returns the time since anything was last received
+     *
+     * @return the silence in milliseconds
+     */
+    public long silence() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceived);
+    }
+
+    /**
+     * Returns the current lag: the time our outstanding PING has been waiting
+     * for a reply, or the latest round-trip time if none is outstanding
+     *
+     * @return the lag in milliseconds
+     */
+    public double lag() {
+        if (token != null) {
+            return Math.max(latency.getLast(), (System.nanoTime() - pingSent) / 1e6);
+        }
+        return Math.max(0, latency.getLast());
+    }
+
+    /**
+     * Returns true once the connection has been reported dead
+     *
+     * @return true if the timeout has expired
+     */
+    public boolean isExpired() {
+        return expired.get();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a raw byte stream into IRC lines without decoding it. Bytes are read
+ * straight into a single reusable buffer and every complete line is handed out
+ * as a slice of that buffer, which is only valid for the duration of the
+ * callback.
+ * <p>
+ * Lines are limited to 512 bytes including the CR-LF, plus up to 8191 bytes of
+ * IRCv3 message tags. Longer lines are dropped.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCLineFramer {
+
+    /**
+     * Maximum length of a line including the trailing CR-LF, excluding tags
+     */
+    public static final int MAX_LINE_LENGTH = 512;
+    /**
+     * Maximum length of the message tags including the leading '@' and the
+     * trailing space
+     */
+    public static final int MAX_TAGS_LENGTH = 8191;
+
+    /**
+     * Receiver of framed lines
+     */
+    public interface LineHandler {
+
+        /**
+         * Called once for every complete line. The slice excludes the line
+         * terminator and must not be used after the method returns.
+         *
+         * @param buffer the buffer holding the line
+         * @param offset the index of the first byte of the line
+         * @param length the length of the line in bytes
+         */
+        public void line(byte[] buffer, int offset, int length);
+    }
+
+    private final byte[] buffer = new byte[MAX_TAGS_LENGTH + MAX_LINE_LENGTH];
+    private final ByteBuffer view = ByteBuffer.wrap(buffer);
+    private int start = 0;
+    private int end = 0;
+    private boolean discarding = false;
+    private long dropped = 0;
+
+    /**
+     * Reads once from a stream and hands out every line completed by the read
+     *
+     * @param in the stream to read from
+     * @param handler the line receiver
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the read fails
+     */
+    public int read(InputStream in, LineHandler handler) throws IOException {
+        int count = in.read(buffer, end, buffer.length - end);
+        if (count > 0) {
+            end += count;
+            frame(handler, end - count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads once from a channel and hands out every line completed by the read
+     *
+     * @param channel the channel to read from
+     * @param handler the line receiver
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the read fails
+     */
+    public int read(ReadableByteChannel channel, LineHandler handler) throws IOException {
+        view.limit(buffer.length);
+        view.position(end);
+        int count = channel.read(view);
+        if (count > 0) {
+            end += count;
+            frame(handler, end - count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of lines dropped for exceeding the length limits
+     *
+     * @return the number of dropped lines
+     */
+    public long droppedLines() {
+        return dropped;
+    }
+
+    /**
+     * Scans the newly read part of the buffer for line feeds
+     */
+    private void frame(LineHandler handler, int from) {
+        for (int i = from; i < end; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+
+            int length = i - start;
+            if (length > 0 && buffer[i - 1] == '\r') {
+                length--;
+            }
+
+            if (discarding) {
+                // Tail end of an overlong line
+                discarding = false;
+            } else if (!withinLimits(start, length)) {
+                dropped++;
+            } else if (length > 0) {
+                handler.line(buffer, start, length);
+            }
+            start = i + 1;
+        }
+
+        if (start == end) {
+            start = end = 0;
+        } else if (end == buffer.length) {
+            if (start == 0) {
+                // No line feed in a full buffer, drop until the next one
+                if (!discarding) {
+                    discarding = true;
+                    dropped++;
+                }
+                end = 0;
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+        }
+    }
+
+    /**
+     * Checks a line against the tag and message length limits
+     */
+    private boolean withinLimits(int offset, int length) {
+        int tags = 0;
+        if (length > 0 && buffer[offset] == '@') {
+            while (tags < length && buffer[offset + tags] != ' ') {
+                tags++;
+            }
+            tags++;
+            if (tags > MAX_TAGS_LENGTH) {
+                return false;
+            }
+        }
+        return length - tags + 2 <= MAX_LINE_LENGTH;
+    }
+
+    /**
+     * Decodes a line as UTF-8, falling back to ISO-8859-1 when the bytes are
+     * not valid UTF-8. Pure ASCII lines skip the validation entirely.
+     *
+     * @param buffer the buffer holding the line
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @return the decoded line
+     */
+    public static String decode(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && buffer[i] >= 0) {
+            i++;
+        }
+        if (i == end) {
+            return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        // Validate the remaining multi-byte sequences
+        while (i < end) {
+            int b = buffer[i] & 0xFF;
+            int extra;
+            if (b < 0x80) {
+                extra = 0;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                extra = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                extra = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                extra = 3;
+            } else {
+                return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+            }
+            if (i + extra >= end && extra > 0) {
+                return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+            }
+            for (int j = 1; j <= extra; j++) {
+                if ((buffer[i + j] & 0xC0) != 0x80) {
+                    return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+                }
+            }
+            i += extra + 1;
+        }
+        return new String(buffer, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns true if the slice starts with the specified ASCII prefix
+     *
+     * @param buffer the buffer holding the line
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @param prefix the ASCII prefix to look for
+     * @return true if the slice starts with the prefix
+     */
+    public static boolean startsWith(byte[] buffer, int offset, int length, String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import me.aliceq.irc.IRCEventLoop;
+import me.aliceq.irc.IRCMessage;
+import me.aliceq.irc.IRCMessageListener;
+import me.aliceq.irc.IRCOverflowPolicy;
+import me.aliceq.irc.IRCServer;
+
+/**
+ * Persistent request which stays registered with the server and queues every
+ * matching message in a bounded ring buffer. Unlike a one-shot request, no
+ * message is missed between two reads.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public class IRCMailbox extends IRCMessageRequest {
+
+    /**
+     * Default number of messages a mailbox holds
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final IRCServer server;
+    private final IRCMessage[] ring;
+    private final IRCOverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+    private int head = 0;
+    private int count = 0;
+    private volatile boolean open = false;
+
+    /**
+     * Constructor
+     *
+     * @param server the server endpoint
+     * @param listener the listener selecting the messages to queue
+     * @param capacity the maximum number of queued messages
+     * @param policy what to do when a message arrives while the mailbox is
+     * full
+     */
+    public IRCMailbox(IRCServer server, IRCMessageListener listener, int capacity, IRCOverflowPolicy policy) {
+        super(server, listener);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Mailbox capacity must be positive");
+        }
+        this.server = server;
+        this.ring = new IRCMessage[capacity];
+        this.policy = policy;
+    }
+
+    /**
+     * Registers the mailbox with the server. Messages are queued from this
+     * point on.
+     */
+    public void open() {
+        if (!open) {
+            open = true;
+            server.addRequest(this);
+        }
+    }
+
+    /**
+     * Unregisters the mailbox from the server. Queued messages can still be
+     * read, and a reader waiting in poll is released once none are left.
+     */
+    public void close() {
+        open = false;
+        server.removeRequest(this);
+
+        // Release a reader blocked on a full mailbox or polling an empty one
+        lock.lock();
+        try {
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the mailbox is registered with the server
+     *
+     * @return true if the mailbox is registered
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Returns the maximum number of queued messages
+     *
+     * @return the capacity of the mailbox
+     */
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Returns the number of queued messages
+     *
+     * @return the number of queued messages
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages discarded because the mailbox was full
+     *
+     * @return the number of dropped messages
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Removes the oldest message, blocking until one is available
+     *
+     * @return the oldest queued message
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public IRCMessage take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting up to the timeout for one to arrive
+     * or returning early if the mailbox is closed with nothing queued
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the oldest queued message, or null if the wait timed out or the
+     * mailbox was closed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public IRCMessage poll(long timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (remaining <= 0 || !open) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mailboxes are read through take and poll
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public IRCMessage push() {
+        throw new UnsupportedOperationException("Mailboxes are read with take()");
+    }
+
+    /**
+     * Mailboxes are read through take and poll
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public IRCMessage push(long timeout) {
+        throw new UnsupportedOperationException("Mailboxes are read with poll()");
+    }
+
+    /**
+     * Queues the message if it matches the listener. The mailbox always stays
+     * registered, so this returns false.
+     *
+     * @param message Message to check
+     * @return false
+     */
+    @Override
+    public boolean validate(IRCMessage message) {
+        if (!open || !getListener().check(message)) {
+            return false;
+        }
+
+        lock.lock();
+        try {
+            if (count == ring.length) {
+                switch (policy) {
+                    case BLOCK:
+                        if (IRCEventLoop.isSelectorThread()) {
+                            // Parking here would stall every connection on the loop
+                            dequeue();
+                            dropped.incrementAndGet();
+                            break;
+                        }
+                        while (count == ring.length && open) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (!open) {
+                            dropped.incrementAndGet();
+                            return false;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dequeue();
+                        dropped.incrementAndGet();
+                        break;
+                    case DROP_NEWEST:
+                        dropped.incrementAndGet();
+                        return false;
+                }
+            }
+            ring[(head + count) % ring.length] = message;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+
+    /**
+     * Removes the head of the ring. Must be called with the lock held.
+     */
+    private IRCMessage dequeue() {
+        IRCMessage message = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        notFull.signal();
+        return message;
+    }
+}
@@ -23,6 +23,9 @@
  */
 package me.aliceq.irc.internal;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import me.aliceq.irc.IRCMessage;
 import me.aliceq.irc.IRCMessageListener;
 import me.aliceq.irc.IRCServer;
@@ -36,7 +39,14 @@ public class IRCMessageRequest {
 
     private final IRCServer endpoint;
     private final IRCMessageListener exchange;
-    private IRCMessage callback = null;
+    private volatile IRCMessage callback = null;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition matched = lock.newCondition();
+
+    /**
+     * Dispatch sequence number at registration, set by IRCRequestIndex
+     */
+    volatile long sequence;
 
     /**
      * Constructor
@@ -49,6 +59,15 @@ public class IRCMessageRequest {
         this.exchange = exchange;
     }
 
+    /**
+     * Returns the listener monitoring the exchange
+     *
+     * @return the listener monitoring the exchange
+     */
+    public IRCMessageListener getListener() {
+        return exchange;
+    }
+
     /**
      * Pushes the request into the server, blocking the calling thread until it
      * is woken. This will not wake up until it is woken by a separate thread.
@@ -57,71 +76,79 @@ public class IRCMessageRequest {
      * @throws InterruptedException when the wait times out before it can find a
      * message
      */
-    public synchronized IRCMessage push() throws InterruptedException {
-        // Push request into the server
-        endpoint.addRequest(this);
-
-        // Timeout
-        try {
-            this.wait();
-        } catch (InterruptedException e) {
-            if (callback == null) {
-                throw e;
-            }
-        }
-
-        // Remove request from server
-        endpoint.removeRequest(this);
-
-        // Callback should be set by now
-        return callback;
+    public IRCMessage push() throws InterruptedException {
+        return push(0);
     }
 
     /**
      * Pushes the request into the server, blocking the calling thread until it
-     * is woken or the wait times out
+     * is woken or the wait times out. Waiting uses a lock condition rather than
+     * a monitor so that a virtual thread blocked here releases its carrier.
      *
-     * @param timeout the amount of time to wait
-     * @return the obtained IRCMessage
+     * @param timeout the amount of time to wait, or 0 to wait indefinitely
+     * @return the obtained IRCMessage, or null if the wait timed out
      * @throws InterruptedException when the wait times out before it can find a
      * message
      */
-    public synchronized IRCMessage push(long timeout) throws InterruptedException {
-// Push request into the server
+    public IRCMessage push(long timeout) throws InterruptedException {
+        callback = null;
+
+        // Push request into the server
         endpoint.addRequest(this);
 
-        // Timeout
+        lock.lock();
         try {
-            this.wait(timeout);
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (callback == null) {
+                if (timeout <= 0) {
+                    matched.await();
+                } else if (remaining > 0) {
+                    remaining = matched.awaitNanos(remaining);
+                } else {
+                    break;
+                }
+            }
         } catch (InterruptedException e) {
             if (callback == null) {
-
                 // Remove request from server
                 endpoint.removeRequest(this);
                 throw e;
             }
+        } finally {
+            lock.unlock();
         }
 
         // Remove request from server
         endpoint.removeRequest(this);
 
-        // Callback should be set by now
+        // Callback is set unless the wait timed out
         return callback;
     }
 
     /**
      * Validates an IRC message with the listener. If valid, it wakes up the
-     * thread after setting the callback.
+     * thread after setting the callback. A request only ever accepts one
+     * message per push, even if it is still registered when the next one is
+     * dispatched.
      *
      * @param message Message to check
      * @return true if the message matched the listener
      */
-    public synchronized boolean validate(IRCMessage message) {
-        if (exchange.check(message)) {
+    public boolean validate(IRCMessage message) {
+        // The listener runs without holding any lock
+        if (callback != null || !exchange.check(message)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (callback != null) {
+                return false;
+            }
             callback = message;
-            this.notify();
+            matched.signal();
             return true;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 }
@@ -0,0 +1,740 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import me.aliceq.irc.IRCFloodControl;
+import me.aliceq.irc.IRCPriority;
+
+/**
+ * Outgoing line queue for a single connection. Senders only enqueue; a shared
+ * writer thread later encodes every queued line into one reusable buffer and
+ * hands it to the socket in as few writes as possible. A batch is written once
+ * the queued bytes reach the flush size or the linger time has passed since
+ * the first line was queued, whichever comes first.
+ * <p>
+ * Sinks which block, such as a socket's output stream, must not be written
+ * from the shared threads, since a peer which stops reading would hold one
+ * of them until the connection is dropped. Queues for those sinks get a
+ * writer thread of their own.
+ * <p>
+ * Lines are queued in one of three priority lanes. High priority lines are
+ * written straight away. Normal and low priority lines are paced by the flood
+ * control penalty clock and taken round-robin by target, so a long backlog to
+ * one channel does not delay a reply to another.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCOutbound {
+
+    /**
+     * Default number of queued bytes which triggers an immediate write
+     */
+    public static final int DEFAULT_FLUSH_SIZE = 4096;
+    /**
+     * Default time in milliseconds a line may wait for more lines to join it
+     */
+    public static final long DEFAULT_LINGER = 0;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final IRCPriority[] PRIORITIES = IRCPriority.values();
+    // Time after which an idle dedicated writer thread exits
+    private static final long WRITER_KEEPALIVE = 30000;
+    private static ScheduledExecutorService writers;
+
+    /**
+     * Destination of encoded batches
+     */
+    public interface Sink {
+
+        /**
+         * Writes a batch of encoded lines. The buffer is reused once the
+         * method returns.
+         *
+         * @param buffer the buffer holding the batch
+         * @param offset the index of the first byte
+         * @param length the number of bytes
+         * @throws IOException if the write fails
+         */
+        public void write(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * A queued line and whoever is waiting for it to be written
+     */
+    private static final class Entry {
+
+        private final String line;
+        private final CompletableFuture<Void> future;
+        private final IRCPriority priority;
+        private final long queued = System.nanoTime();
+
+        private Entry(String line, CompletableFuture<Void> future, IRCPriority priority) {
+            this.line = line;
+            this.future = future;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Lines of one lane, queued per target and taken from each target in turn.
+     * Only used with the write lock held.
+     */
+    private static final class Lane {
+
+        private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+        private final Map<String, ArrayDeque<Entry>> targets = new HashMap<>();
+        private final ArrayDeque<ArrayDeque<Entry>> rotation = new ArrayDeque<>();
+
+        /**
+         * Moves newly queued lines to their target queues
+         */
+        private void admit() {
+            for (Entry entry = incoming.poll(); entry != null; entry = incoming.poll()) {
+                String target = target(entry.line);
+                ArrayDeque<Entry> queue = targets.get(target);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    targets.put(target, queue);
+                    rotation.add(queue);
+                }
+                queue.add(entry);
+            }
+        }
+
+        private Entry peek() {
+            ArrayDeque<Entry> queue = rotation.peek();
+            return queue == null ? null : queue.peek();
+        }
+
+        /**
+         * Takes the next line of the current target and moves on to the next
+         * target
+         */
+        private Entry poll() {
+            ArrayDeque<Entry> queue = rotation.poll();
+            if (queue == null) {
+                return null;
+            }
+            Entry entry = queue.poll();
+            if (queue.isEmpty()) {
+                targets.remove(target(entry.line));
+            } else {
+                rotation.add(queue);
+            }
+            return entry;
+        }
+    }
+
+    private final Sink sink;
+    private final ScheduledExecutorService writer;
+    private final Queue<Entry> urgent = new ConcurrentLinkedQueue<>();
+    private final Lane normal = new Lane();
+    private final Lane low = new Lane();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ReentrantLock writing = new ReentrantLock();
+    private final List<CompletableFuture<Void>> completions = new ArrayList<>();
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            flush();
+        }
+    };
+    private byte[] buffer = new byte[DEFAULT_FLUSH_SIZE * 2];
+    private volatile int flushSize = DEFAULT_FLUSH_SIZE;
+    private volatile long linger = DEFAULT_LINGER;
+    private volatile IRCFloodControl floodControl = IRCFloodControl.DEFAULT;
+    private volatile IOException failure;
+
+    // Flood control state, guarded by the write lock except where volatile
+    private long clock;
+    private volatile long throttledUntil;
+    private volatile boolean clockReset;
+
+    // Statistics
+    private final AtomicInteger[] depth = new AtomicInteger[PRIORITIES.length];
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile long maxWait;
+
+    /**
+     * Constructor for a queue written by the shared writer threads. The sink
+     * must never block.
+     *
+     * @param sink the destination of encoded batches
+     */
+    public IRCOutbound(Sink sink) {
+        this(sink, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param sink the destination of encoded batches
+     * @param blocking if true, the sink may block and the queue is written by
+     * a writer thread of its own, which exits while the queue is idle
+     */
+    public IRCOutbound(Sink sink, boolean blocking) {
+        this.sink = sink;
+        if (blocking) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new IRCThreadFactory("IRCStreamWriter", Thread.NORM_PRIORITY));
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            executor.setKeepAliveTime(WRITER_KEEPALIVE, TimeUnit.MILLISECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            this.writer = executor;
+        } else {
+            this.writer = writers();
+        }
+        for (int i = 0; i < depth.length; i++) {
+            depth[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Creates a sink writing to a blocking output stream. Queues using it
+     * must be created as blocking.
+     *
+     * @param out the stream to write to
+     * @return a sink for the stream
+     */
+    public static Sink streamSink(final OutputStream out) {
+        return new Sink() {
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * Sets when queued lines are written
+     *
+     * @param flushSize the number of queued bytes which triggers an immediate
+     * write
+     * @param linger the maximum time in milliseconds a line waits for others
+     * to join its batch
+     */
+    public void setFlushPolicy(int flushSize, long linger) {
+        this.flushSize = Math.max(1, flushSize);
+        this.linger = Math.max(0, linger);
+    }
+
+    /**
+     * Sets the flood control which paces normal and low priority lines
+     *
+     * @param floodControl the flood control settings
+     */
+    public void setFloodControl(IRCFloodControl floodControl) {
+        this.floodControl = floodControl == null ? IRCFloodControl.UNLIMITED : floodControl;
+        throttledUntil = 0;
+        schedule(true);
+    }
+
+    /**
+     * Forgets the penalty charged so far. Servers only start counting a
+     * client's lines towards flood limits once it has registered, so the
+     * bounded registration traffic should not delay what follows it.
+     */
+    public void resetFloodClock() {
+        clockReset = true;
+        throttledUntil = 0;
+        schedule(true);
+    }
+
+    /**
+     * Returns the flood control which paces normal and low priority lines
+     *
+     * @return the flood control settings
+     */
+    public IRCFloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    /**
+     * Returns the number of bytes, approximately, waiting to be written
+     *
+     * @return the number of queued bytes
+     */
+    public int pendingBytes() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the priority a line is sent with unless one is specified
+     *
+     * @param line the line to classify
+     * @return HIGH for PING, PONG and QUIT, otherwise NORMAL
+     */
+    public static IRCPriority priorityOf(String line) {
+        int end = line.indexOf(' ');
+        int length = end < 0 ? line.length() : end;
+        if (length == 4
+                && (line.regionMatches(true, 0, "PONG", 0, 4)
+                || line.regionMatches(true, 0, "PING", 0, 4)
+                || line.regionMatches(true, 0, "QUIT", 0, 4))) {
+            return IRCPriority.HIGH;
+        }
+        return IRCPriority.NORMAL;
+    }
+
+    /**
+     * Returns the key used for per-target fairness, which is the first
+     * parameter of the line folded to lower case
+     */
+    private static String target(String line) {
+        int start = line.indexOf(' ') + 1;
+        if (start == 0 || start == line.length() || line.charAt(start) == ':') {
+            return "";
+        }
+        int end = line.indexOf(' ', start);
+        return line.substring(start, end < 0 ? line.length() : end).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Queues a line for writing without scheduling a write. It is written with
+     * the next batch or the next call to flush.
+     *
+     * @param line the line to send, without its line terminator
+     */
+    public void write(String line) {
+        enqueue(new Entry(line, null, priorityOf(line)));
+    }
+
+    /**
+     * Queues a line and schedules it to be written
+     *
+     * @param line the line to send, without its line terminator
+     */
+    public void send(String line) {
+        send(line, priorityOf(line));
+    }
+
+    /**
+     * Queues a line in the specified lane and schedules it to be written
+     *
+     * @param line the line to send, without its line terminator
+     * @param priority the lane to queue the line in
+     */
+    public void send(String line, IRCPriority priority) {
+        enqueue(new Entry(line, null, priority));
+        schedule(priority == IRCPriority.HIGH);
+    }
+
+    /**
+     * Queues a high priority line and writes it on the calling thread. If
+     * another thread is already writing, that thread picks it up instead, so
+     * the line never waits behind a scheduled write. Only high priority lines
+     * are written here; anything else queued is left to the writer, so a
+     * reader answering a PING never takes on a backlog the peer is not
+     * reading.
+     *
+     * @param line the line to send, without its line terminator
+     */
+    public void sendNow(String line) {
+        enqueue(new Entry(line, null, IRCPriority.HIGH));
+        while (!urgent.isEmpty() && writing.tryLock()) {
+            try {
+                long now = System.nanoTime();
+                write(appendUrgent(now));
+            } finally {
+                writing.unlock();
+            }
+        }
+        if (pending.get() > 0) {
+            schedule(false);
+        }
+    }
+
+    /**
+     * Queues a group of lines and schedules them to be written together
+     *
+     * @param lines the lines to send, without their line terminators
+     */
+    public void send(String[] lines) {
+        boolean urgent = false;
+        for (String line : lines) {
+            IRCPriority priority = priorityOf(line);
+            enqueue(new Entry(line, null, priority));
+            urgent |= priority == IRCPriority.HIGH;
+        }
+        schedule(urgent);
+    }
+
+    /**
+     * Queues a line and schedules it to be written
+     *
+     * @param line the line to send, without its line terminator
+     * @return a future completed once the line has been handed to the socket
+     */
+    public CompletableFuture<Void> sendAsync(String line) {
+        return sendAsync(line, priorityOf(line));
+    }
+
+    /**
+     * Queues a line in the specified lane and schedules it to be written
+     *
+     * @param line the line to send, without its line terminator
+     * @param priority the lane to queue the line in
+     * @return a future completed once the line has been handed to the socket
+     */
+    public CompletableFuture<Void> sendAsync(String line, IRCPriority priority) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        enqueue(new Entry(line, future, priority));
+        schedule(priority == IRCPriority.HIGH);
+        return future;
+    }
+
+    private void enqueue(Entry entry) {
+        switch (entry.priority) {
+            case HIGH:
+                urgent.add(entry);
+                break;
+            case LOW:
+                low.incoming.add(entry);
+                break;
+            default:
+                normal.incoming.add(entry);
+        }
+        pending.addAndGet(entry.line.length() + 2);
+        depth[entry.priority.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * Schedules a write on the shared writer threads, immediately if enough
+     * bytes are queued or an urgent line is waiting
+     */
+    private void schedule(boolean now) {
+        boolean full = now || pending.get() >= flushSize;
+        try {
+            if (scheduled.compareAndSet(false, true)) {
+                long delay = full ? 0 : linger;
+                writer.schedule(drain, delay, TimeUnit.MILLISECONDS);
+            } else if (now || (full && linger > 0)) {
+                // A lingering or throttled write is pending but this can't wait
+                writer.execute(drain);
+            }
+        } catch (RejectedExecutionException e) {
+            // Closed; settle whatever is queued on the calling thread
+            scheduled.set(false);
+            flush();
+        }
+    }
+
+    /**
+     * Closes the queue. Lines queued from now on fail instead of being
+     * written, and a dedicated writer thread is stopped.
+     */
+    public void close() {
+        if (failure == null) {
+            failure = new IOException("Connection closed");
+        }
+        if (writer != writers()) {
+            writer.shutdownNow();
+        }
+        flush();
+    }
+
+    /**
+     * Returns true if a drain would write anything right now
+     */
+    private boolean writable() {
+        if (!urgent.isEmpty()) {
+            return true;
+        }
+        if (depth[IRCPriority.NORMAL.ordinal()].get() + depth[IRCPriority.LOW.ordinal()].get() <= 0) {
+            return false;
+        }
+        return throttledUntil == 0 || System.nanoTime() - throttledUntil >= 0;
+    }
+
+    /**
+     * Writes every queued line which flood control allows on the calling
+     * thread. If another thread is already writing, it picks up the lines
+     * instead. Lines held back are written later by a writer thread.
+     */
+    public void flush() {
+        while (writable() && writing.tryLock()) {
+            try {
+                drainQueue();
+            } finally {
+                writing.unlock();
+            }
+        }
+    }
+
+    /**
+     * Encodes queued lines into the buffer, writing whenever it fills. Must be
+     * called with the write lock held.
+     */
+    private void drainQueue() {
+        long now = System.nanoTime();
+        int count = appendUrgent(now);
+
+        normal.admit();
+        low.admit();
+        IRCFloodControl control = floodControl;
+        boolean limited = control.isLimited() && failure == null;
+        long window = TimeUnit.MILLISECONDS.toNanos(control.getWindow());
+        long wait = 0;
+        while (true) {
+            Lane lane = normal.peek() != null ? normal : low;
+            Entry entry = lane.peek();
+            if (entry == null) {
+                break;
+            }
+            if (limited) {
+                long start = clock - now > 0 ? clock : now;
+                long end = start + penalty(control, entry);
+                if (start != now && end - now > window) {
+                    wait = end - window - now;
+                    break;
+                }
+            }
+            count = append(lane.poll(), count, now);
+        }
+        write(count);
+
+        if (wait > 0) {
+            // Come back once the clock has caught up enough for the next line
+            throttled.incrementAndGet();
+            throttledUntil = now + wait;
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writer.schedule(drain, wait, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        } else {
+            throttledUntil = 0;
+        }
+    }
+
+    /**
+     * Encodes every urgent line into an empty buffer, returning the number of
+     * bytes used. Must be called with the write lock held.
+     */
+    private int appendUrgent(long now) {
+        int count = 0;
+        if (clockReset) {
+            clockReset = false;
+            clock = now;
+        }
+
+        // Urgent lines are never held back, but still count towards the clock
+        for (Entry entry = urgent.poll(); entry != null; entry = urgent.poll()) {
+            count = append(entry, count, now);
+        }
+        return count;
+    }
+
+    private static long penalty(IRCFloodControl control, Entry entry) {
+        return TimeUnit.MILLISECONDS.toNanos(control.penalty(entry.line.length()));
+    }
+
+    /**
+     * Charges a line to the penalty clock, records its statistics and encodes
+     * it, writing the buffer first if it might not fit
+     */
+    private int append(Entry entry, int count, long now) {
+        String line = entry.line;
+        pending.addAndGet(-(line.length() + 2));
+        depth[entry.priority.ordinal()].decrementAndGet();
+        if (entry.future != null) {
+            completions.add(entry.future);
+        }
+
+        clock = (clock - now > 0 ? clock : now) + penalty(floodControl, entry);
+        long waited = now - entry.queued;
+        sent.incrementAndGet();
+        totalWait.addAndGet(waited);
+        if (waited > maxWait) {
+            maxWait = waited;
+        }
+
+        // Worst case is three bytes per char plus CR-LF
+        int worst = line.length() * 3 + 2;
+        if (count + worst > buffer.length) {
+            count = write(count);
+            if (worst > buffer.length) {
+                buffer = new byte[worst];
+            }
+        }
+        return encode(line, count);
+    }
+
+    /**
+     * Encodes a line and its terminator at the specified index, returning the
+     * index after it
+     */
+    private int encode(String line, int index) {
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            buffer[index++] = (byte) c;
+            i++;
+        }
+        if (i < length) {
+            byte[] rest = line.substring(i).getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(rest, 0, buffer, index, rest.length);
+            index += rest.length;
+        }
+        buffer[index++] = CRLF[0];
+        buffer[index++] = CRLF[1];
+        return index;
+    }
+
+    /**
+     * Writes the first bytes of the buffer and settles the waiting futures
+     */
+    private int write(int count) {
+        if (count > 0) {
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                sink.write(buffer, 0, count);
+            } catch (IOException e) {
+                failure = e;
+                for (CompletableFuture<Void> future : completions) {
+                    future.completeExceptionally(e);
+                }
+                completions.clear();
+                return 0;
+            }
+        }
+        for (CompletableFuture<Void> future : completions) {
+            future.complete(null);
+        }
+        completions.clear();
+        return 0;
+    }
+
+    /**
+     * Returns the write failure which closed this queue, if any
+     *
+     * @return the first write failure or null
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of lines waiting to be written
+     *
+     * @return the number of queued lines in every lane
+     */
+    public int queuedLines() {
+        int total = 0;
+        for (AtomicInteger count : depth) {
+            total += count.get();
+        }
+        return Math.max(0, total);
+    }
+
+    /**
+     * Returns the number of lines waiting in a lane
+     *
+     * @param priority the lane
+     * @return the number of queued lines in the lane
+     */
+    public int queuedLines(IRCPriority priority) {
+        return Math.max(0, depth[priority.ordinal()].get());
+    }
+
+    /**
+     * Returns the number of lines written so far
+     *
+     * @return the number of lines written
+     */
+    public long sentLines() {
+        return sent.get();
+    }
+
+    /**
+     * Returns the average time lines spent queued
+     *
+     * @return the average wait in milliseconds
+     */
+    public double averageWait() {
+        long count = sent.get();
+        return count == 0 ? 0 : totalWait.get() / (count * 1e6);
+    }
+
+    /**
+     * Returns the longest time a line spent queued
+     *
+     * @return the longest wait in milliseconds
+     */
+    public double maximumWait() {
+        return maxWait / 1e6;
+    }
+
+    /**
+     * Returns the number of times flood control held lines back
+     *
+     * @return the number of throttled writes
+     */
+    public long throttleCount() {
+        return throttled.get();
+    }
+
+    private static synchronized ScheduledExecutorService writers() {
+        if (writers == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                    Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new IRCThreadFactory("IRCWriter", Thread.NORM_PRIORITY));
+            executor.setRemoveOnCancelPolicy(true);
+            writers = executor;
+        }
+        return writers;
+    }
+}
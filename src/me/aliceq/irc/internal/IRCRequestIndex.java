@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import me.aliceq.irc.IRCCaseKey;
+import me.aliceq.irc.IRCMessage;
+import me.aliceq.irc.IRCMessageFilter;
+import me.aliceq.irc.IRCMessageListener;
+
+/**
+ * Registry of pending message requests. Requests whose listener is an
+ * IRCMessageFilter are bucketed by sender, receiver or type, in that order of
+ * preference, so that dispatching a message only checks the buckets it could
+ * match plus the requests which can not be indexed.
+ * <p>
+ * Every bucket is a concurrent set, so messages are dispatched without taking
+ * a lock while requests are added and removed from any thread. A bucket is
+ * created and dropped atomically with its first and last request, so an empty
+ * index costs nothing per message. Bucket keys hash the message's sender,
+ * receiver or type in place, so nothing is copied or lowercased to look them
+ * up.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCRequestIndex {
+
+    private final ConcurrentMap<IRCCaseKey, Set<IRCMessageRequest>> bySender = new ConcurrentHashMap<>();
+    private final ConcurrentMap<IRCCaseKey, Set<IRCMessageRequest>> byReceiver = new ConcurrentHashMap<>();
+    private final ConcurrentMap<IRCCaseKey, Set<IRCMessageRequest>> byType = new ConcurrentHashMap<>();
+    private final Set<IRCMessageRequest> unindexed = newBucket();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Returns the number of registered requests
+     *
+     * @return the number of registered requests
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Registers a request
+     *
+     * @param request the request to add
+     */
+    public void add(IRCMessageRequest request) {
+        request.sequence = sequence.get();
+        boolean added;
+        IRCMessageListener listener = request.getListener();
+        if (listener instanceof IRCMessageFilter) {
+            IRCMessageFilter filter = (IRCMessageFilter) listener;
+            if (filter.getSender() != null) {
+                added = add(bySender, IRCMessageFilter.nameKey(filter.getSender()), request);
+            } else if (filter.getReceiver() != null) {
+                added = add(byReceiver, IRCMessageFilter.nameKey(filter.getReceiver()), request);
+            } else if (filter.getTypes() != null) {
+                // A message only has one type so it can never match two buckets
+                added = false;
+                for (String type : filter.getTypes()) {
+                    added |= add(byType, IRCMessageFilter.typeKey(type), request);
+                }
+            } else {
+                added = unindexed.add(request);
+            }
+        } else {
+            added = unindexed.add(request);
+        }
+        if (added) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Unregisters a request
+     *
+     * @param request the request to remove
+     * @return true if the request was registered
+     */
+    public boolean remove(IRCMessageRequest request) {
+        boolean removed = false;
+        IRCMessageListener listener = request.getListener();
+        if (listener instanceof IRCMessageFilter) {
+            IRCMessageFilter filter = (IRCMessageFilter) listener;
+            if (filter.getSender() != null) {
+                removed = remove(bySender, IRCMessageFilter.nameKey(filter.getSender()), request);
+            } else if (filter.getReceiver() != null) {
+                removed = remove(byReceiver, IRCMessageFilter.nameKey(filter.getReceiver()), request);
+            } else if (filter.getTypes() != null) {
+                for (String type : filter.getTypes()) {
+                    removed |= remove(byType, IRCMessageFilter.typeKey(type), request);
+                }
+            } else {
+                removed = unindexed.remove(request);
+            }
+        } else {
+            removed = unindexed.remove(request);
+        }
+        if (removed) {
+            size.decrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * Checks a message against every request which could match it. Requests
+     * which match are woken and unregistered. Requests added after dispatch
+     * starts never see the message, so a subroutine woken by it can not
+     * receive it a second time by registering again.
+     *
+     * @param message the message to dispatch
+     */
+    public void dispatch(IRCMessage message) {
+        long limit = sequence.incrementAndGet();
+        if (size.get() == 0) {
+            return;
+        }
+        if (!bySender.isEmpty()) {
+            dispatch(IRCMessageFilter.getBySender(bySender, message), message, limit);
+        }
+        if (!byReceiver.isEmpty()) {
+            dispatch(IRCMessageFilter.getByReceiver(byReceiver, message), message, limit);
+        }
+        if (!byType.isEmpty()) {
+            dispatch(IRCMessageFilter.getByType(byType, message), message, limit);
+        }
+        if (!unindexed.isEmpty()) {
+            dispatch(unindexed, message, limit);
+        }
+    }
+
+    /**
+     * Validates a message against the requests of a single bucket which were
+     * registered before the dispatch started
+     */
+    private void dispatch(Set<IRCMessageRequest> bucket, IRCMessage message, long limit) {
+        if (bucket == null) {
+            return;
+        }
+        for (IRCMessageRequest request : bucket) {
+            if (request.sequence < limit && request.validate(message)) {
+                remove(request);
+            }
+        }
+    }
+
+    /**
+     * Adds a request to its bucket, creating the bucket if needed
+     */
+    private static boolean add(ConcurrentMap<IRCCaseKey, Set<IRCMessageRequest>> map, IRCCaseKey key, final IRCMessageRequest request) {
+        final boolean[] added = new boolean[1];
+        map.compute(key, new BiFunction<IRCCaseKey, Set<IRCMessageRequest>, Set<IRCMessageRequest>>() {
+            @Override
+            public Set<IRCMessageRequest> apply(IRCCaseKey k, Set<IRCMessageRequest> bucket) {
+                if (bucket == null) {
+                    bucket = newBucket();
+                }
+                added[0] = bucket.add(request);
+                return bucket;
+            }
+        });
+        return added[0];
+    }
+
+    /**
+     * Removes a request from its bucket, dropping the bucket once it is empty
+     */
+    private static boolean remove(ConcurrentMap<IRCCaseKey, Set<IRCMessageRequest>> map, IRCCaseKey key, final IRCMessageRequest request) {
+        final boolean[] removed = new boolean[1];
+        map.computeIfPresent(key, new BiFunction<IRCCaseKey, Set<IRCMessageRequest>, Set<IRCMessageRequest>>() {
+            @Override
+            public Set<IRCMessageRequest> apply(IRCCaseKey k, Set<IRCMessageRequest> bucket) {
+                removed[0] = bucket.remove(request);
+                return bucket.isEmpty() ? null : bucket;
+            }
+        });
+        return removed[0];
+    }
+
+    private static Set<IRCMessageRequest> newBucket() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<IRCMessageRequest, Boolean>());
+    }
+}
@@ -23,6 +23,11 @@
  */
 package me.aliceq.irc.internal;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import me.aliceq.irc.IRCServer;
+
 /**
  * Thread which reads messages from a server socket and adds them to the server
  * queue
@@ -31,11 +36,81 @@ package me.aliceq.irc.internal;
  */
 public class IRCServerReader implements Runnable {
 
-    
-    
+    private final IRCServer server;
+    private final InputStream in;
+    private final IRCLineFramer framer = new IRCLineFramer();
+    private final IRCLineFramer.LineHandler handler;
+    private final IRCKeepalive keepalive;
+    private final CloseHandler onClose;
+    private volatile boolean stopped;
+
+    /**
+     * Notified once when the connection ends without the reader having been
+     * stopped
+     */
+    public interface CloseHandler {
+
+        /**
+         * Called on the reader thread just before it exits
+         *
+         * @param reason why the connection ended
+         */
+        public void closed(String reason);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param server the server being read from
+     * @param in the socket input stream
+     * @param handler the receiver of every framed line
+     * @param keepalive checked whenever a read times out, or null
+     * @param onClose notified when the connection ends
+     */
+    public IRCServerReader(IRCServer server, InputStream in, IRCLineFramer.LineHandler handler, IRCKeepalive keepalive, CloseHandler onClose) {
+        this.server = server;
+        this.in = in;
+        this.handler = handler;
+        this.keepalive = keepalive;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Makes the reader exit once its current read returns or fails
+     */
+    public void stop() {
+        stopped = true;
+    }
+
     @Override
     public void run() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        while (!stopped) {
+            try {
+                if (framer.read(in, handler) < 0) {
+                    // End of stream; reading again would return -1 forever
+                    close("Connection closed by remote host");
+                    return;
+                }
+            } catch (SocketTimeoutException ex) {
+                // Nothing arrived for a while; let the keepalive decide
+                if (keepalive != null) {
+                    keepalive.check();
+                }
+            } catch (IOException ex) {
+                if (server.isVerbose(IRCServer.VERBOSITY_LOW) && !stopped) {
+                    System.out.println(ex);
+                }
+                close(ex.toString());
+                return;
+            }
+        }
+    }
+
+    private void close(String reason) {
+        if (!stopped) {
+            stopped = true;
+            onClose.closed(reason);
+        }
     }
 
 }
@@ -26,7 +26,10 @@ package me.aliceq.irc.internal;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import me.aliceq.irc.IRCException;
@@ -42,7 +45,19 @@ public final class IRCSocket {
     public static final int DEFAULT_SSL_PORT = 6697;
     public static final int DEFAULT_TIMEOUT = 5000;
 
+    // Marks a socket whose close handler has already run
+    private static final Runnable CLOSED = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final String address;
+    private final int port;
+    private final boolean secure;
     private Socket socket;
+    private SocketChannel channel;
+    private final AtomicReference<Runnable> closeHandler = new AtomicReference<>();
 
     /**
      * Basic constructor for an unprotected socket on the default port
@@ -86,17 +101,89 @@ public final class IRCSocket {
      * @throws IRCException
      */
     public IRCSocket(String address, int port, boolean secure) throws IRCException {
+        this.address = address;
+        this.port = port;
+        this.secure = secure;
         try {
             if (secure) {
-                socket = SSLSocketFactory.getDefault().createSocket(address, port);
+                socket = SSLSocketFactory.getDefault().createSocket();
             } else {
-                socket = SocketFactory.getDefault().createSocket(address, port);
+                socket = SocketFactory.getDefault().createSocket();
             }
+            socket.connect(new InetSocketAddress(address, port), DEFAULT_TIMEOUT);
         } catch (IOException e) {
             throw new IRCException(e);
         }
     }
 
+    /**
+     * Constructor for an already connected channel. Sockets created this way
+     * can be multiplexed by an IRCEventLoop instead of requiring a dedicated
+     * reader thread.
+     *
+     * @param channel a connected socket channel
+     * @throws IRCException if the channel is not connected
+     */
+    public IRCSocket(SocketChannel channel) throws IRCException {
+        this(channel, null);
+    }
+
+    /**
+     * Constructor for an already connected channel which reconnects to the
+     * specified host name. The name is resolved again on every reopen, so a
+     * round-robin or failover name can lead to a different address.
+     *
+     * @param channel a connected socket channel
+     * @param host the host name to reconnect to, or null to use the name
+     * the channel was connected with
+     * @throws IRCException if the channel is not connected
+     */
+    public IRCSocket(SocketChannel channel, String host) throws IRCException {
+        if (!channel.isConnected()) {
+            throw new IRCException("Channel is not connected");
+        }
+        this.channel = channel;
+        this.socket = channel.socket();
+        if (host == null) {
+            // The host string is the name the channel was connected with,
+            // or the literal address if there was none; it never does a
+            // reverse lookup
+            InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+            host = remote.getHostString();
+        }
+        this.address = host;
+        this.port = socket.getPort();
+        this.secure = false;
+    }
+
+    /**
+     * Opens a new connection to the same host, of the same kind as this one.
+     * The host name is resolved again, so the connection may go to a
+     * different address than this one. This socket is left untouched.
+     *
+     * @return a new connected socket
+     * @throws IRCException if the connection fails
+     */
+    public IRCSocket reopen() throws IRCException {
+        if (channel == null) {
+            return new IRCSocket(address, port, secure);
+        }
+        SocketChannel fresh = null;
+        try {
+            fresh = SocketChannel.open();
+            fresh.socket().connect(new InetSocketAddress(address, port), DEFAULT_TIMEOUT);
+            return new IRCSocket(fresh, address);
+        } catch (IOException e) {
+            if (fresh != null) {
+                try {
+                    fresh.close();
+                } catch (IOException ex) {
+                }
+            }
+            throw new IRCException(e);
+        }
+    }
+
     /**
      * Returns true if a connection is established
      *
@@ -106,6 +193,61 @@ public final class IRCSocket {
         return socket.isConnected();
     }
 
+    /**
+     * Returns true once the socket has been closed
+     *
+     * @return true if the socket is closed
+     */
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /**
+     * Sets how long a blocking read waits for data before failing with a
+     * SocketTimeoutException. The socket stays usable after a timeout.
+     *
+     * @param timeout the timeout in milliseconds, or 0 to wait forever
+     * @throws IOException if the timeout can not be set
+     */
+    public void setReadTimeout(int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+    }
+
+    /**
+     * Sets a handler which is run once when the socket is closed through
+     * close(). If the socket has already been closed, the handler is run
+     * immediately on the calling thread.
+     *
+     * @param handler the handler to run
+     * @throws IllegalStateException if a handler has already been set
+     */
+    public void setCloseHandler(Runnable handler) {
+        if (!closeHandler.compareAndSet(null, handler)) {
+            if (closeHandler.get() != CLOSED) {
+                throw new IllegalStateException("Close handler already set");
+            }
+            handler.run();
+        }
+    }
+
+    /**
+     * Closes the socket, unblocking any thread reading from it
+     */
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            socket.close();
+        } catch (IOException e) {
+        }
+
+        Runnable handler = closeHandler.getAndSet(CLOSED);
+        if (handler != null && handler != CLOSED) {
+            handler.run();
+        }
+    }
+
     public int getLocalPort() {
         return socket.getLocalPort();
     }
@@ -122,6 +264,16 @@ public final class IRCSocket {
         return socket.getRemoteSocketAddress().toString();
     }
 
+    /**
+     * Returns the underlying socket channel, or null if the socket was not
+     * created from one
+     *
+     * @return the socket channel or null
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
     /**
      * Gets the socket's input stream
      *
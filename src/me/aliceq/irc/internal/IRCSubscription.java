@@ -0,0 +1,454 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import me.aliceq.irc.IRCEventLoop;
+import me.aliceq.irc.IRCMessage;
+import me.aliceq.irc.IRCMessageListener;
+import me.aliceq.irc.IRCOverflowPolicy;
+import me.aliceq.irc.IRCServer;
+
+/**
+ * Persistent request which hands every matching message to a Flow.Subscriber
+ * on an executor. Messages wait in a bounded ring until the subscriber
+ * requests them, and no thread is held while the ring is empty or the
+ * subscriber has no outstanding demand.
+ * <p>
+ * Deliveries are serialized: a single drain task is submitted to the executor
+ * when messages or demand arrive, and it runs until either is exhausted, so
+ * the subscriber is never called from two threads at once.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public class IRCSubscription extends IRCMessageRequest implements Flow.Subscription, Runnable {
+
+    /**
+     * Number of slots allocated up front. The ring doubles up to its capacity
+     * only while the subscriber falls behind, so idle subscriptions stay
+     * small.
+     */
+    private static final int INITIAL_RING = 8;
+
+    private final IRCServer server;
+    private final Flow.Subscriber<? super IRCMessage> subscriber;
+    private final Executor executor;
+    private final int capacity;
+    private IRCMessage[] ring;
+    private final IRCOverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private int head = 0;
+    private int count = 0;
+    private volatile boolean open = false;
+    private volatile boolean completed = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable error = null;
+
+    /**
+     * Constructor
+     *
+     * @param server the server endpoint
+     * @param listener the listener selecting the messages to deliver
+     * @param subscriber the subscriber receiving the messages
+     * @param executor the executor the subscriber is called on
+     * @param capacity the maximum number of messages waiting for demand
+     * @param policy what to do when a message arrives while the ring is full
+     */
+    public IRCSubscription(IRCServer server, IRCMessageListener listener, Flow.Subscriber<? super IRCMessage> subscriber,
+            Executor executor, int capacity, IRCOverflowPolicy policy) {
+        super(server, listener);
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Subscription capacity must be positive");
+        }
+        this.server = server;
+        this.subscriber = subscriber;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.ring = new IRCMessage[Math.min(capacity, INITIAL_RING)];
+        this.policy = policy;
+    }
+
+    /**
+     * Hands the subscription to its subscriber on the calling thread, then
+     * registers it with the server. Messages are queued from this point on
+     * unless the subscriber cancelled from onSubscribe.
+     */
+    public void open() {
+        if (open || cancelled || completed) {
+            return;
+        }
+        try {
+            subscriber.onSubscribe(this);
+        } catch (RuntimeException e) {
+            cancel();
+            throw e;
+        }
+        if (!cancelled) {
+            open = true;
+            server.addRequest(this);
+        }
+    }
+
+    /**
+     * Requests up to n more messages. Demand accumulates up to Long.MAX_VALUE,
+     * which is treated as unbounded.
+     *
+     * @param n the number of additional messages to deliver
+     */
+    @Override
+    public void request(long n) {
+        if (cancelled) {
+            return;
+        }
+        if (n <= 0) {
+            error = new IllegalArgumentException("Requested " + n + " messages, must be positive");
+            close();
+        } else {
+            long current, next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+
+            // An empty ring is drained by the next validate, so no task is
+            // submitted until there is something to deliver
+            if (size() == 0 && !completed) {
+                return;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Unregisters the subscription and discards every waiting message. The
+     * subscriber receives no further signals once a running delivery returns.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        close();
+
+        lock.lock();
+        try {
+            while (count > 0) {
+                dequeue();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters the subscription. Waiting messages are still delivered as
+     * demand allows, then the subscriber is completed. Called by the server
+     * when the connection is closed for good.
+     */
+    public void complete() {
+        completed = true;
+        close();
+        schedule();
+    }
+
+    /**
+     * Returns true if the subscription is registered with the server
+     *
+     * @return true if the subscription is registered
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Returns true if the subscription was cancelled or has sent its final
+     * signal
+     *
+     * @return true if the subscriber receives no more signals
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the maximum number of messages waiting for demand
+     *
+     * @return the capacity of the subscription
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of messages waiting for demand
+     *
+     * @return the number of waiting messages
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages the subscriber has requested but not yet
+     * received
+     *
+     * @return the outstanding demand
+     */
+    public long requested() {
+        return demand.get();
+    }
+
+    /**
+     * Returns the number of messages discarded because the ring was full
+     *
+     * @return the number of dropped messages
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Subscriptions deliver through their subscriber
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public IRCMessage push() {
+        throw new UnsupportedOperationException("Subscriptions deliver to their subscriber");
+    }
+
+    /**
+     * Subscriptions deliver through their subscriber
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public IRCMessage push(long timeout) {
+        throw new UnsupportedOperationException("Subscriptions deliver to their subscriber");
+    }
+
+    /**
+     * Queues the message if it matches the listener and schedules a delivery.
+     * The subscription always stays registered, so this returns false.
+     *
+     * @param message Message to check
+     * @return false
+     */
+    @Override
+    public boolean validate(IRCMessage message) {
+        if (!open || !getListener().check(message)) {
+            return false;
+        }
+
+        lock.lock();
+        try {
+            if (count == ring.length && ring.length < capacity) {
+                grow();
+            }
+            if (count == ring.length) {
+                switch (policy) {
+                    case BLOCK:
+                        if (IRCEventLoop.isSelectorThread()) {
+                            // Parking here would stall every connection on the loop
+                            dequeue();
+                            dropped.incrementAndGet();
+                            break;
+                        }
+                        while (count == ring.length && open) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (!open) {
+                            dropped.incrementAndGet();
+                            return false;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dequeue();
+                        dropped.incrementAndGet();
+                        break;
+                    case DROP_NEWEST:
+                        dropped.incrementAndGet();
+                        return false;
+                }
+            }
+            ring[(head + count) % ring.length] = message;
+            count++;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+        return false;
+    }
+
+    /**
+     * Delivers waiting messages while the subscriber has demand. Runs on the
+     * executor; an exception thrown by onNext cancels the subscription and is
+     * passed to onError.
+     */
+    @Override
+    public void run() {
+        int missed = 1;
+        do {
+            if (cancelled) {
+                return;
+            }
+            Throwable failure = error;
+            if (failure != null) {
+                cancel();
+                signalError(failure);
+                return;
+            }
+
+            long wanted = demand.get();
+            long delivered = 0;
+            while (delivered != wanted && !cancelled) {
+                IRCMessage message = poll();
+                if (message == null) {
+                    break;
+                }
+                try {
+                    subscriber.onNext(message);
+                } catch (RuntimeException e) {
+                    // A direct executor runs this on the reader, which must survive
+                    cancel();
+                    signalError(e);
+                    return;
+                }
+                delivered++;
+            }
+            if (delivered > 0 && wanted != Long.MAX_VALUE) {
+                demand.addAndGet(-delivered);
+            }
+
+            if (completed && !cancelled && size() == 0) {
+                cancelled = true;
+                subscriber.onComplete();
+                return;
+            }
+            missed = scheduled.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Submits the drain task unless it is already pending or running. If the
+     * executor rejects it, the subscriber is failed on the calling thread;
+     * the drain counter is never released, so no other delivery can overlap.
+     */
+    private void schedule() {
+        if (scheduled.getAndIncrement() != 0) {
+            return;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            if (!cancelled) {
+                cancel();
+                signalError(e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages and releases a reader blocked on a full ring
+     */
+    private void close() {
+        open = false;
+        server.removeRequest(this);
+
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the head of the ring, or returns null if it is empty
+     */
+    private IRCMessage poll() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            IRCMessage message = dequeue();
+            notFull.signal();
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signals a terminal error, ignoring anything the subscriber throws back
+     */
+    private void signalError(Throwable failure) {
+        try {
+            subscriber.onError(failure);
+        } catch (RuntimeException e) {
+            // The subscription is already cancelled
+        }
+    }
+
+    /**
+     * Doubles the ring up to its capacity, unrolling it so the head is at 0.
+     * Must be called with the lock held.
+     */
+    private void grow() {
+        IRCMessage[] grown = new IRCMessage[Math.min(capacity, ring.length * 2)];
+        for (int i = 0; i < count; i++) {
+            grown[i] = ring[(head + i) % ring.length];
+        }
+        ring = grown;
+        head = 0;
+    }
+
+    /**
+     * Removes the head of the ring. Must be called with the lock held.
+     */
+    private IRCMessage dequeue() {
+        IRCMessage message = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        return message;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits outgoing text into pieces which fit a byte budget once encoded as
+ * UTF-8. Pieces end on a space where possible and never split a character or
+ * a surrogate pair.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCTextSplitter {
+
+    private IRCTextSplitter() {
+    }
+
+    /**
+     * Returns the length of a string encoded as UTF-8, without encoding it
+     *
+     * @param text the text to measure
+     * @return the number of bytes
+     */
+    public static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Splits text into pieces of at most the specified number of UTF-8 bytes.
+     * Line breaks always start a new piece, and empty lines are dropped.
+     *
+     * @param text the text to split
+     * @param maxBytes the maximum encoded length of a piece
+     * @return the pieces, in order
+     */
+    public static List<String> split(String text, int maxBytes) {
+        List<String> pieces = new ArrayList<>();
+        int length = text.length();
+        int start = 0;
+        while (start <= length) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+                end++;
+            }
+            if (end > start) {
+                splitLine(text, start, end, Math.max(4, maxBytes), pieces);
+            }
+            start = end + 1;
+        }
+        return pieces;
+    }
+
+    /**
+     * Splits a single line between start and end
+     */
+    private static void splitLine(String text, int start, int end, int maxBytes, List<String> pieces) {
+        while (start < end) {
+            int bytes = 0;
+            int space = -1;
+            int spaceBytes = 0;
+            int i = start;
+            while (i < end) {
+                char c = text.charAt(i);
+                int width;
+                int step = 1;
+                if (c < 0x80) {
+                    width = 1;
+                } else if (c < 0x800) {
+                    width = 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    width = 4;
+                    step = 2;
+                } else {
+                    width = 3;
+                }
+                if (bytes + width > maxBytes) {
+                    break;
+                }
+                if (c == ' ') {
+                    space = i;
+                    spaceBytes = bytes;
+                }
+                bytes += width;
+                i += step;
+            }
+
+            if (i >= end) {
+                pieces.add(text.substring(start, end));
+                return;
+            }
+
+            int cut = i;
+            int next = i;
+            if (text.charAt(i) == ' ') {
+                // The budget ends exactly on a word boundary
+                next = i + 1;
+            } else if (space > start && spaceBytes >= maxBytes / 2) {
+                // Break after the last whole word, unless that leaves a short piece
+                cut = space;
+                next = space + 1;
+            }
+            pieces.add(text.substring(start, cut));
+            start = next;
+        }
+    }
+}
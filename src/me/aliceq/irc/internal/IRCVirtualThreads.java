@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to JDK 21 virtual threads without requiring JDK 21 to build or run.
+ * On older runtimes isSupported returns false.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class IRCVirtualThreads {
+
+    private static final Object BUILDER;
+    private static final Method UNSTARTED;
+    private static ExecutorService executor;
+
+    static {
+        Object builder = null;
+        Method unstarted = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            builder = null;
+            unstarted = null;
+        }
+        BUILDER = builder;
+        UNSTARTED = unstarted;
+    }
+
+    private IRCVirtualThreads() {
+
+    }
+
+    /**
+     * Returns true if the runtime supports virtual threads
+     *
+     * @return true if virtual threads are available
+     */
+    public static boolean isSupported() {
+        return UNSTARTED != null;
+    }
+
+    /**
+     * Returns an executor shared by every caller which starts a new virtual
+     * thread for each task
+     *
+     * @return a virtual thread per task executor
+     * @throws UnsupportedOperationException if the runtime does not support
+     * virtual threads
+     */
+    public static synchronized ExecutorService sharedExecutor() {
+        if (executor == null) {
+            try {
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Creates an unstarted virtual thread
+     *
+     * @param task the task to run
+     * @return a new virtual thread
+     * @throws UnsupportedOperationException if the runtime does not support
+     * virtual threads
+     */
+    public static Thread newThread(Runnable task) {
+        if (UNSTARTED == null) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+        }
+        try {
+            return (Thread) UNSTARTED.invoke(BUILDER, task);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+}
@@ -53,9 +53,10 @@ public class QuickStartSample {
 
         // Sleep for a long time so that the program doesn't exit. The moment this thread exits the program will quit.
         try {
-            // Check every half second if we successfully connected
-            while (!server.getDetails().connected) {
-                Thread.sleep(500);
+            // Wait up to 30 seconds for the server to welcome us
+            if (!server.awaitReady(30000)) {
+                System.out.println("Could not connect");
+                return;
             }
 
             System.out.println("Successfully connected!");
@@ -51,9 +51,10 @@ public class SubroutineSample {
         IRCSubroutine subroutine = new AutomaticResponseSubroutine("I am a bot. This is an automated message. Beep boop.");
 
         try {
-            // Check every half second if we successfully connected
-            while (!server.getDetails().connected) {
-                Thread.sleep(500);
+            // Wait up to 30 seconds for the server to welcome us
+            if (!server.awaitReady(30000)) {
+                System.out.println("Could not connect");
+                return;
             }
             System.out.println("Successfully connected!");
             server.join("#Wonderland");
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.subroutines;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import me.aliceq.irc.IRCCode;
+import me.aliceq.irc.IRCMessage;
+import me.aliceq.irc.IRCMessageListener;
+import me.aliceq.irc.IRCOverflowPolicy;
+import me.aliceq.irc.IRCPriority;
+import me.aliceq.irc.IRCSubroutine;
+import me.aliceq.irc.internal.IRCMailbox;
+
+/**
+ * Subroutine run by a server during registration which negotiates IRCv3
+ * capabilities and, if the identity asks for it, authenticates with SASL
+ * before registration completes. The server holds registration from CAP LS
+ * until CAP END; servers without capability support ignore CAP LS and
+ * register as usual, which ends the subroutine.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class CapabilitySubroutine extends IRCSubroutine {
+
+    /**
+     * Capabilities requested unless the server is told otherwise
+     */
+    public static final List<String> DEFAULT_CAPABILITIES = Collections.unmodifiableList(Arrays.asList(
+            "server-time", "message-tags", "multi-prefix", "batch", "away-notify", "account-notify"));
+
+    /**
+     * Longest capability list sent in a single CAP REQ
+     */
+    private static final int MAX_REQ_LENGTH = 400;
+    /**
+     * Longest AUTHENTICATE payload chunk
+     */
+    private static final int MAX_AUTHENTICATE_LENGTH = 400;
+    /**
+     * How long to wait for any reply before giving up and ending negotiation
+     */
+    private static final long TIMEOUT = 10000;
+
+    private final Collection<String> wanted;
+    private final String mechanism;
+    private final String response;
+    private final Set<String> offered = new HashSet<>();
+    private final Set<String> enabled = new HashSet<>();
+    private IRCMailbox mailbox;
+    private int pending = 0;
+    private boolean ended = false;
+
+    /**
+     * Constructor
+     *
+     * @param wanted the capabilities to request if offered
+     * @param mechanism the SASL mechanism, or null to not authenticate
+     * @param response the base64 AUTHENTICATE response for the mechanism
+     */
+    public CapabilitySubroutine(Collection<String> wanted, String mechanism, String response) {
+        this.wanted = wanted;
+        this.mechanism = mechanism;
+        this.response = response;
+    }
+
+    @Override
+    protected void setup() {
+        IRCMessageListener listener = new IRCMessageListener() {
+            @Override
+            public boolean check(IRCMessage message) {
+                int code = message.getMode();
+                return message.typeEquals("CAP") || message.typeEquals("AUTHENTICATE")
+                        || code == IRCCode.RPL_WELCOME || code == IRCCode.ERR_INVALIDCAPCMD
+                        || (code >= IRCCode.RPL_LOGGEDIN && code <= IRCCode.RPL_SASLMECHS);
+            }
+        };
+        mailbox = subscribe(listener, 64, IRCOverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!ended) {
+                IRCMessage message = mailbox.poll(TIMEOUT);
+                if (message == null) {
+                    // The server went quiet; let registration go ahead
+                    end();
+                    break;
+                }
+                if (message.getMode() == IRCCode.RPL_WELCOME) {
+                    // Registered, either without capabilities or after CAP END
+                    break;
+                }
+                handle(message);
+            }
+        } catch (InterruptedException e) {
+        } finally {
+            mailbox.close();
+            server.getDetails().capabilities = Collections.unmodifiableSet(enabled);
+        }
+    }
+
+    private void handle(IRCMessage message) {
+        int code = message.getMode();
+        if (message.typeEquals("CAP")) {
+            // CAP <nick> <subcommand> [*] :<capabilities>
+            String subcommand = message.getParam(1);
+            String list = message.getParam(message.getParamCount() - 1);
+            boolean more = message.getParamCount() > 3 && "*".equals(message.getParam(2));
+            if (subcommand == null || list == null) {
+                return;
+            }
+            switch (subcommand.toUpperCase(Locale.ROOT)) {
+                case "LS":
+                    offer(list);
+                    if (!more) {
+                        request();
+                    }
+                    break;
+                case "ACK":
+                    for (String capability : list.split(" ")) {
+                        if (capability.startsWith("-")) {
+                            enabled.remove(capability.substring(1));
+                        } else if (!capability.isEmpty()) {
+                            enabled.add(capability);
+                        }
+                    }
+                    if (!more) {
+                        answered();
+                    }
+                    break;
+                case "NAK":
+                    // The whole line was refused; the other lines stand
+                    answered();
+                    break;
+            }
+        } else if (message.typeEquals("AUTHENTICATE")) {
+            // The server is ready for the response, sent in chunks of at most
+            // 400 bytes; a final chunk of exactly 400 is followed by +
+            if ("+".equals(message.getParam(0))) {
+                int i = 0;
+                do {
+                    int end = Math.min(response.length(), i + MAX_AUTHENTICATE_LENGTH);
+                    server.send("AUTHENTICATE " + response.substring(i, end), IRCPriority.HIGH);
+                    i = end;
+                } while (i < response.length());
+                if (response.length() % MAX_AUTHENTICATE_LENGTH == 0 && !response.equals("+")) {
+                    server.send("AUTHENTICATE +", IRCPriority.HIGH);
+                }
+            }
+        } else if (code == IRCCode.RPL_LOGGEDIN) {
+            // <nick> <nick!user@host> <account> :You are now logged in
+            server.getDetails().account = message.getParam(2);
+        } else if (code == IRCCode.RPL_SASLSUCCESS) {
+            server.getDetails().registered = true;
+            server.getDetails().identified = true;
+            end();
+        } else if (code == IRCCode.ERR_NICKLOCKED || code == IRCCode.ERR_SASLFAIL || code == IRCCode.ERR_SASLTOOLONG
+                || code == IRCCode.ERR_SASLABORTED || code == IRCCode.ERR_SASLALREADY || code == IRCCode.ERR_INVALIDCAPCMD) {
+            // Carry on registering without authentication
+            end();
+        }
+    }
+
+    /**
+     * Records the capabilities of one CAP LS line. Values, such as the
+     * mechanisms of sasl=PLAIN,EXTERNAL, are kept after an '='.
+     */
+    private void offer(String list) {
+        for (String capability : list.split(" ")) {
+            if (!capability.isEmpty()) {
+                offered.add(capability);
+            }
+        }
+    }
+
+    /**
+     * Requests every wanted capability the server offers, or ends negotiation
+     * if there are none
+     */
+    private void request() {
+        StringBuilder line = new StringBuilder();
+        for (String capability : offered) {
+            int equals = capability.indexOf('=');
+            String name = equals < 0 ? capability : capability.substring(0, equals);
+            boolean sasl = name.equals("sasl") && mechanism != null
+                    && (equals < 0 || Arrays.asList(capability.substring(equals + 1).split(",")).contains(mechanism));
+            if (!sasl && !wanted.contains(name)) {
+                continue;
+            }
+            if (line.length() > 0 && line.length() + name.length() + 1 > MAX_REQ_LENGTH) {
+                server.send("CAP REQ :" + line, IRCPriority.HIGH);
+                pending++;
+                line.setLength(0);
+            }
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(name);
+        }
+        if (line.length() > 0) {
+            server.send("CAP REQ :" + line, IRCPriority.HIGH);
+            pending++;
+        } else {
+            end();
+        }
+    }
+
+    /**
+     * Counts an answered CAP REQ line. Once all are answered, authenticates
+     * if sasl was acknowledged, or otherwise ends negotiation.
+     */
+    private void answered() {
+        if (--pending > 0) {
+            return;
+        }
+        if (enabled.contains("sasl") && mechanism != null) {
+            server.send("AUTHENTICATE " + mechanism, IRCPriority.HIGH);
+        } else {
+            end();
+        }
+    }
+
+    /**
+     * Ends negotiation, which lets the server complete registration
+     */
+    private void end() {
+        if (!ended) {
+            ended = true;
+            server.send("CAP END", IRCPriority.HIGH);
+        }
+    }
+}
@@ -27,7 +27,11 @@ import me.aliceq.irc.IRCChannel;
 import me.aliceq.irc.IRCCode;
 import me.aliceq.irc.IRCMessage;
 import me.aliceq.irc.IRCMessageListener;
+import me.aliceq.irc.IRCOverflowPolicy;
+import me.aliceq.irc.IRCPriority;
 import me.aliceq.irc.IRCSubroutine;
+import me.aliceq.irc.IRCUser;
+import me.aliceq.irc.internal.IRCMailbox;
 
 /**
  * Subroutine used to monitor a channel and maintain information about its
@@ -37,24 +41,58 @@ import me.aliceq.irc.IRCSubroutine;
  */
 public class ChannelMonitoringSubroutine extends IRCSubroutine {
 
+    // Token which marks our WHOX replies, and the fields requested: token,
+    // channel, user, host, nick, flags, account and realname
+    private static final String WHOX_TOKEN = "152";
+    private static final String WHOX_FIELDS = "%tcuhnfar," + WHOX_TOKEN;
+
+    // Lines the mailbox holds before dropping the oldest; a burst beyond this
+    // costs a resync rather than stalling the reader
+    private static final int CAPACITY = 8192;
+
+    private IRCMailbox mailbox;
+    private long dropped = 0;
+
     @Override
-    public void run() {
-        // Listener returns any message that has a numeric mode (error, etc)
-        // or that is a non-PRIVMSG directed at a channel
+    protected void setup() {
+        // Listener returns any message that has a numeric mode (error, etc),
+        // that is a non-PRIVMSG directed at a channel, or that is a QUIT,
+        // NICK or ACCOUNT, which affect every channel the sender is in
         //
         // Catching PRIVMSG now istead of after fetching results in slightly 
         //lower memory usage, as getting each message takes resources
         IRCMessageListener listener = new IRCMessageListener() {
             @Override
             public boolean check(IRCMessage message) {
-                return message.numericType() || (message.getDestination().charAt(0) == '#' && !message.typeEquals("PRIVMSG"));
+                return message.numericType() || (message.channelReceiver() && !message.typeEquals("PRIVMSG"))
+                        || message.typeEquals("QUIT") || message.typeEquals("NICK") || message.typeEquals("ACCOUNT");
             }
         };
 
+        // The reader may be a selector thread shared by other connections, so
+        // it never waits for us. Lost lines are repaired by resyncing.
+        mailbox = subscribe(listener, CAPACITY, IRCOverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    public void run() {
         // Run indefinitely (thread is a daemon)
         while (true) {
             // Get the next message
-            IRCMessage message = getMessage(listener);
+            IRCMessage message;
+            try {
+                message = mailbox.take();
+            } catch (InterruptedException e) {
+                mailbox.close();
+                return;
+            }
+
+            // Channel state may have missed lines
+            long lost = mailbox.droppedCount();
+            if (lost != dropped) {
+                dropped = lost;
+                resync();
+            }
 
             // Check whether it's a numeric response or a command
             if (message.numericType()) {
@@ -70,22 +108,75 @@ public class ChannelMonitoringSubroutine extends IRCSubroutine {
         String m = message.getMessage();
         int index = m.indexOf(':');
 
-        // Extract current username
-        server.getDetails().currentNick = message.getReceiver();
+        // Extract current username, unless we are not registered yet
+        String receiver = message.getReceiver();
+        if (receiver != null && !receiver.equals("*")) {
+            server.getDetails().currentNick = receiver;
+        }
 
         // Parse
-        if (mode == IRCCode.RPL_NAMREPLY) { // List of names, extract current users
-            // Extract channel
-            IRCChannel channel = server.getChannel(m.substring(2, index - 1));
-
-            // Extract users and add
-            for (String nick : m.substring(index + 1).split(" ")) { // Add each nick
-                channel.addUser(nick);
+        if (mode == IRCCode.RPL_NAMREPLY) { // List of names, staged until the end
+            // <nick> <symbol> <channel> :<names>
+            // Replies for channels we are not in, such as a plain NAMES
+            // query, must not register them
+            String name = message.getParam(2);
+            String names = message.getParam(3);
+            IRCChannel channel = name == null ? null : server.findChannel(name);
+            if (channel != null && names != null) {
+                channel.stageNames(names);
             }
-
+        } else if (mode == IRCCode.RPL_ENDOFNAMES) { // Swap the staged list in
+            // <nick> <channel> :End of NAMES list
+            IRCChannel channel = findChannel(message);
+            if (channel == null) {
+                return;
+            }
+            boolean joined = !channel.isSynced();
+            channel.commitNames();
             if (server.isVerbose()) {
                 System.out.println("Users in " + channel.getName() + ": " + channel.getUsers());
             }
+
+            // After joining, fetch the channel settings, then the hosts and
+            // accounts of everyone in one pass
+            if (joined) {
+                server.send("MODE " + channel.getName(), IRCPriority.LOW);
+                if (server.usesWhox()) {
+                    server.send("WHO " + channel.getName() + " " + WHOX_FIELDS, IRCPriority.LOW);
+                }
+            }
+        } else if (mode == IRCCode.RPL_CHANNELMODEIS) {
+            // <nick> <channel> <modes> [<parameters>...]
+            IRCChannel channel = findChannel(message);
+            if (channel != null) {
+                channel.applyModes(message, 2);
+            }
+        } else if (mode == IRCCode.RPL_BANLIST || mode == IRCCode.RPL_EXCEPTLIST || mode == IRCCode.RPL_INVITELIST) {
+            // <nick> <channel> <mask> [<setter> <time>]
+            IRCChannel channel = findChannel(message);
+            String mask = message.getParam(2);
+            if (channel != null && mask != null) {
+                channel.stageListEntry(listMode(mode), mask);
+            }
+        } else if (mode == IRCCode.RPL_ENDOFBANLIST || mode == IRCCode.RPL_ENDOFEXCEPTLIST || mode == IRCCode.RPL_ENDOFINVITELIST) {
+            IRCChannel channel = findChannel(message);
+            if (channel != null) {
+                channel.commitList(listMode(mode));
+            }
+        } else if (mode == IRCCode.RPL_WHOSPCRPL) {
+            // <nick> <token> <channel> <user> <host> <nick> <flags> <account> :<realname>
+            if (WHOX_TOKEN.equals(message.getParam(1)) && message.getParamCount() >= 8) {
+                IRCUser user = updateHost(message.getParam(5), message.getParam(3), message.getParam(4));
+                if (user != null) {
+                    String account = message.getParam(7);
+                    user.setAccount("0".equals(account) ? null : account);
+                }
+            }
+        } else if (mode == IRCCode.RPL_WHOREPLY) {
+            // <nick> <channel> <user> <host> <server> <nick> <flags> :<hops> <realname>
+            if (message.getParamCount() >= 6) {
+                updateHost(message.getParam(5), message.getParam(2), message.getParam(3));
+            }
         } else if (mode == IRCCode.RPL_TOPIC) {// Set the channel topic
             // Set the channel topic
             // Extract channel
@@ -94,69 +185,131 @@ public class ChannelMonitoringSubroutine extends IRCSubroutine {
             if (server.isVerbose()) {
                 System.out.println("Topic for  " + channel.getName() + ": " + channel.getTopic());
             }
-            
-            // If we don't have an user list ask for one
-            if (channel.getUsers().isEmpty()) {
-                this.send("NAMES " + channel.getName());
-            }
         }
     }
 
+    /**
+     * Fetches the members and settings of every channel again after the
+     * mailbox overflowed. The fresh NAMES list replaces whatever the lost
+     * JOIN, PART, QUIT and NICK lines would have changed.
+     */
+    private void resync() {
+        if (server.isVerbose()) {
+            System.out.println("Channel monitor overflowed, resyncing");
+        }
+        for (IRCChannel channel : server.getChannels()) {
+            channel.discardNames();
+            server.send("NAMES " + channel.getName(), IRCPriority.LOW);
+            server.send("MODE " + channel.getName(), IRCPriority.LOW);
+        }
+    }
+
+    /**
+     * Returns the known channel named by the second parameter of a numeric
+     */
+    private IRCChannel findChannel(IRCMessage message) {
+        String name = message.getParam(1);
+        return name == null ? null : server.findChannel(name);
+    }
+
+    /**
+     * Returns the list mode a list reply or its end belongs to
+     */
+    private static char listMode(int code) {
+        switch (code) {
+            case IRCCode.RPL_EXCEPTLIST:
+            case IRCCode.RPL_ENDOFEXCEPTLIST:
+                return 'e';
+            case IRCCode.RPL_INVITELIST:
+            case IRCCode.RPL_ENDOFINVITELIST:
+                return 'I';
+            default:
+                return 'b';
+        }
+    }
+
+    /**
+     * Records the user@host of a tracked user from a WHO reply
+     */
+    private IRCUser updateHost(String nick, String user, String host) {
+        IRCUser tracked = server.getUser(nick);
+        if (tracked != null) {
+            tracked.setHostMask(user + "@" + host);
+        }
+        return tracked;
+    }
+
     private void parseCommand(String command, IRCMessage message) {
         String channel = message.getDestination();
 
         switch (message.getType().toUpperCase()) {
             case "JOIN":
                 if (message.senderEquals(server.getDetails().currentNick)) {
+                    // Our own join registers the channel; NAMES fills it in
+                    server.getChannel(message);
                     break;
                 }
-                server.getChannel(channel).addUser(message.getSender());
+                server.getChannel(message).addUser(message.getSender());
+                IRCUser joined = server.getUser(message.getSender());
+                if (joined != null) {
+                    joined.setHostMask(message.getHostMask());
+                }
                 if (server.isVerbose()) {
                     System.out.println("Person joined " + channel);
                 }
                 break;
             case "PART":
-            case "QUIT":
-            case "KICK":
-                if (message.senderEquals(server.getDetails().currentNick)) {
+            case "KICK": {
+                // A KICK removes its second parameter rather than the sender
+                String nick = message.typeEquals("KICK") ? message.getParam(1) : message.getSender();
+                if (nick == null) {
+                    break;
+                }
+                String self = server.getDetails().currentNick;
+                if (self != null && server.getCaseMapping().equals(nick, self)) {
                     server.unregisterChannel(channel);
                     if (server.isVerbose()) {
                         System.out.println("Program left " + channel);
                     }
                 } else {
-                    server.getChannel(channel).removeUser(message.getSender());
+                    server.getChannel(message).removeUser(nick);
                     if (server.isVerbose()) {
-                        System.out.println(message.getSender() + " left " + channel);
+                        System.out.println(nick + " left " + channel);
                     }
                 }
+            }
+            break;
+            case "QUIT":
+                // Leaves every channel the user was in
+                if (server.removeUser(message.getSender()) != null && server.isVerbose()) {
+                    System.out.println(message.getSender() + " quit");
+                }
                 break;
-            case "MODE": {
-                int index = message.getMessage().indexOf(' ');
-                String user = message.getMessage().substring(index + 1);
-                String mode = message.getMessage().substring(0, index);
-                boolean toggle = true;   // true = add, false = remove
-                for (int i = 0; i < mode.length(); i++) {
-                    switch (mode.charAt(i)) {
-                        case '+':
-                            toggle = true;
-                        case '-':
-                            toggle = false;
-                        case 'v':
-                        case 'V':
-                            if (toggle) {
-                                server.getChannel(channel).replaceUser(user, "+" + user);
-                            }
-                        case 'o':
-                        case 'O':
-                            if (toggle) {
-                                server.getChannel(channel).replaceUser(user, "@" + user);
-                                break;
-                            }
-                    }
+            case "ACCOUNT": {
+                // account-notify: the account the user logged in to, or *
+                IRCUser user = server.getUser(message.getSender());
+                if (user != null) {
+                    String account = message.getReceiver();
+                    user.setAccount("*".equals(account) ? null : account);
                 }
-
+            }
+            break;
+            case "NICK": {
+                String nick = message.getReceiver();
+                if (message.senderEquals(server.getDetails().currentNick)) {
+                    server.getDetails().currentNick = nick;
+                }
+                if (server.renameUser(message.getSender(), nick) && server.isVerbose()) {
+                    System.out.println(message.getSender() + " is now " + nick);
+                }
+            }
+            break;
+            case "MODE": {
+                // <channel> <modes> [<parameters>...]
+                IRCChannel target = server.getChannel(message);
+                target.applyModes(message, 1);
                 if (server.isVerbose()) {
-                    System.out.println("Changed user mode for  " + channel + ":" + user + " to " + mode);
+                    System.out.println("Modes of " + channel + " are now " + target.getModeString());
                 }
             }
             break;
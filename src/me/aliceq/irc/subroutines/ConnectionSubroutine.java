@@ -23,45 +23,116 @@
  */
 package me.aliceq.irc.subroutines;
 
+import me.aliceq.irc.IRCCode;
 import me.aliceq.irc.IRCMessage;
-import me.aliceq.irc.IRCMessageListener;
+import me.aliceq.irc.IRCMessageFilter;
+import me.aliceq.irc.IRCOverflowPolicy;
 import me.aliceq.irc.IRCSubroutine;
+import me.aliceq.irc.internal.IRCMailbox;
 
 /**
- * Subroutine called by a server upon connecting to validate the connection
+ * Subroutine called by a server upon connecting to validate the connection.
+ * If the nickname is taken it retries with an alternate one, and it stops
+ * waiting when the server reports the connection lost.
  *
  * @author Alice Quiros <email@aliceq.me>
  */
 public final class ConnectionSubroutine extends IRCSubroutine {
 
+    /**
+     * How long to wait for the server to welcome us
+     */
+    private static final long WELCOME_TIMEOUT = 60000;
+    /**
+     * How long to wait for each NickServ notice
+     */
+    private static final long NICKSERV_TIMEOUT = 10000;
+    /**
+     * How many alternate nicknames to try when ours is taken
+     */
+    private static final int MAX_NICK_RETRIES = 5;
+
+    private volatile IRCMailbox welcome;
+    private volatile IRCMailbox nickserv;
+    private volatile boolean stopped = false;
+
+    @Override
+    protected void setup() {
+        // Subscribe before the handshake is flushed so no reply can be missed
+        welcome = subscribe(IRCMessageFilter.code(IRCCode.RPL_WELCOME, IRCCode.ERR_NICKNAMEINUSE), 4, IRCOverflowPolicy.DROP_NEWEST);
+        nickserv = subscribe(IRCMessageFilter.sender("NickServ"), 16, IRCOverflowPolicy.DROP_OLDEST);
+
+        // The connection may have been lost before we subscribed
+        if (stopped) {
+            stop();
+        }
+    }
+
+    /**
+     * Stops waiting for registration. Called by the server when the
+     * connection is lost or registration starts over.
+     */
+    public void stop() {
+        stopped = true;
+        IRCMailbox mailbox = welcome;
+        if (mailbox != null) {
+            mailbox.close();
+        }
+        mailbox = nickserv;
+        if (mailbox != null) {
+            mailbox.close();
+        }
+    }
+
     @Override
     public void run() {
-        // Search for either a 001 connection success or 433 nick taken error
-        IRCMessage msg = getMessage(new IRCMessageListener() {
-            @Override
-            public boolean check(IRCMessage message) {
-                return message.getType().equals("001") || message.getType().equals("433");
-            }
-        });
+        try {
+            // Search for either a 001 connection success or 433 nick taken error
+            int retries = 0;
+            long deadline = System.currentTimeMillis() + WELCOME_TIMEOUT;
+            while (true) {
+                IRCMessage msg = welcome.poll(deadline - System.currentTimeMillis());
+                if (msg == null) {
+                    return;
+                }
+                if (msg.getMode() == IRCCode.RPL_WELCOME) {
+                    server.getDetails().connected = true;
+                    break;
+                }
 
-        // Verify connection or not
-        switch (msg.getType()) {
-            case "001": // RPL_WELCOME
-                server.getDetails().connected = true;
-                break;
-            case "433": // NICK TAKEN
+                // Nick taken, often by our own ghost after a reconnect
                 server.getDetails().nickIsTaken = true;
+                if (++retries > MAX_NICK_RETRIES) {
+                    return;
+                }
+                // <client> <nick> :Nickname is already in use
+                String taken = msg.getParam(1);
+                String nick = (taken != null ? taken : server.getDetails().currentNick) + "_";
+                server.getDetails().currentNick = nick;
+                send("NICK " + nick);
+            }
+            welcome.close();
+
+            // Already authenticated with SASL during registration
+            if (server.getDetails().identified) {
                 return;
-        }
+            }
 
-        // Nickserv registration message
-        if (getMessage("NickServ").getMessage().contains("This nickname is registered")) {
-            server.getDetails().registered = true;
+            // Nickserv registration message
+            IRCMessage notice = nickserv.poll(NICKSERV_TIMEOUT);
+            if (notice != null && notice.getMessage().contains("This nickname is registered")) {
+                server.getDetails().registered = true;
 
-            // Nickserv identification message
-            if (getMessage("NickServ").getMessage().contains("You are now identified for")) {
-                server.getDetails().identified = true;
+                // Nickserv identification message
+                notice = nickserv.poll(NICKSERV_TIMEOUT);
+                if (notice != null && notice.getMessage().contains("You are now identified for")) {
+                    server.getDetails().identified = true;
+                }
             }
+        } catch (InterruptedException e) {
+        } finally {
+            welcome.close();
+            nickserv.close();
         }
     }
 
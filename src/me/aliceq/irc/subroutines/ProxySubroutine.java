@@ -24,6 +24,7 @@
 package me.aliceq.irc.subroutines;
 
 import me.aliceq.irc.IRCMessage;
+import me.aliceq.irc.IRCMessageFilter;
 import me.aliceq.irc.IRCMessageListener;
 import me.aliceq.irc.IRCSubroutine;
 
@@ -72,17 +73,14 @@ public class ProxySubroutine extends IRCSubroutine {
 
     @Override
     public void run() {
-        IRCMessageListener filter = new IRCMessageListener() {
+        IRCMessageListener filter = IRCMessageFilter.type("PRIVMSG").and(new IRCMessageListener() {
 
             @Override
             public boolean check(IRCMessage message) {
-                if (!message.typeEquals("PRIVMSG")) {
-                    return false;
-                }
                 int index = message.getMessage().indexOf(key);
                 return index == 0 && message.getSender().matches(master);
             }
-        };
+        });
 
         while (true) {
             // Get raw message
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import me.aliceq.irc.IRCMessage;
+import me.aliceq.irc.IRCMessageFilter;
+import me.aliceq.irc.IRCMessageListener;
+import me.aliceq.irc.internal.IRCMessageRequest;
+import me.aliceq.irc.internal.IRCRequestIndex;
+
+/**
+ * Measures the cost of dispatching a message to pending requests, indexed
+ * against checking every request in turn, and the allocation per dispatch
+ * when nothing is indexed under the message's keys
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class DispatchBenchmark {
+
+    private static final int MESSAGE_COUNT = 100000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        IRCMessage[] messages = new IRCMessage[MESSAGE_COUNT];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = IRCMessage.parseFrom(":nick" + (i % 50) + "!u@host PRIVMSG #chan" + (i % 10) + " :hello there " + i);
+        }
+
+        // Indexed against linear, with half the requests filtering by type and
+        // half by sender
+        for (int count : new int[]{10, 50, 200, 1000}) {
+            IRCRequestIndex index = new IRCRequestIndex();
+            List<IRCMessageRequest> linear = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                IRCMessageListener listener = i % 2 == 0 ? IRCMessageFilter.type("CMD" + i) : IRCMessageFilter.sender("nick" + i);
+                IRCMessageRequest request = new IRCMessageRequest(null, listener);
+                index.add(request);
+                linear.add(request);
+            }
+            long indexed = 0, scanned = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (IRCMessage message : messages) {
+                    index.dispatch(message);
+                }
+                long middle = System.nanoTime();
+                for (IRCMessage message : messages) {
+                    for (int i = 0; i < linear.size(); i++) {
+                        linear.get(i).validate(message);
+                    }
+                }
+                indexed = middle - start;
+                scanned = System.nanoTime() - middle;
+            }
+            System.out.printf("%d requests: indexed %.0f ns/msg, linear %.0f ns/msg%n", count,
+                    (double) indexed / messages.length, (double) scanned / messages.length);
+        }
+
+        // One unrelated request in each map, so every key is probed and missed
+        IRCRequestIndex index = new IRCRequestIndex();
+        index.add(new IRCMessageRequest(null, IRCMessageFilter.sender("nobody")));
+        index.add(new IRCMessageRequest(null, IRCMessageFilter.receiver("#nowhere")));
+        index.add(new IRCMessageRequest(null, IRCMessageFilter.type("KICK")));
+        for (int round = 1; round <= ROUNDS; round++) {
+            long allocated = allocated();
+            long start = System.nanoTime();
+            for (IRCMessage message : messages) {
+                index.dispatch(message);
+            }
+            long time = System.nanoTime() - start;
+            allocated = allocated() - allocated;
+            System.out.printf("round %d, no match: %.0f ns/msg, %s%n", round, (double) time / messages.length,
+                    allocated < 0 ? "allocation not measured" : String.format("%.1f B/msg", (double) allocated / messages.length));
+        }
+    }
+
+    /**
+     * Returns the bytes allocated by the calling thread so far, or -1 if the
+     * JVM does not report it
+     */
+    private static long allocated() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.bench;
+
+import me.aliceq.irc.IRCMessage;
+
+/**
+ * Measures IRCMessage parsing throughput against the split and regex parser
+ * it replaced, over a mix of typical lines
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class ParseBenchmark {
+
+    private static final String[] LINES = {
+        ":nick!user@host.example.com PRIVMSG #channel :hello there how are you doing today",
+        ":irc.server.net 353 me = #chan :@op +voice user1 user2 user3 user4 user5",
+        ":nick!user@host QUIT :Ping timeout: 240 seconds",
+        ":nick!user@host JOIN #channel",
+        ":irc.server.net 005 me CHANTYPES=# PREFIX=(ov)@+ NETWORK=Test :are supported by this server",
+        ":nick!user@host MODE #chan +ov a b"
+    };
+    private static final int LINE_COUNT = 2000000;
+    private static final int ROUNDS = 5;
+
+    /**
+     * The previous parser: a split into four fields and a regex to tell
+     * numerics apart
+     */
+    private static String split(String raw) {
+        String[] tokens = raw.split("\\s+:?", 4);
+        String sender = tokens[0].substring(1).trim();
+        String type = tokens[1].trim();
+        String receiver = tokens.length > 2 ? tokens[2].trim() : null;
+        return type.matches("[0-9]*") ? sender : receiver;
+    }
+
+    public static void main(String[] args) {
+        int sink = 0;
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < LINE_COUNT; i++) {
+                sink += split(LINES[i % LINES.length]).length();
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < LINE_COUNT; i++) {
+                IRCMessage message = IRCMessage.parseFrom(LINES[i % LINES.length]);
+                sink += message.numericType() ? message.getMode() : message.getReceiver().length();
+            }
+            long end = System.nanoTime();
+
+            System.out.printf("round %d: split/regex %.2fM lines/s, single pass %.2fM lines/s%n", round,
+                    LINE_COUNT / ((middle - start) / 1e3), LINE_COUNT / ((end - middle) / 1e3));
+        }
+        // Printed so that neither loop can be optimised away
+        System.out.println("checksum " + sink);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import me.aliceq.irc.IRCMessage;
+import me.aliceq.irc.IRCMessageFilter;
+import me.aliceq.irc.IRCMessageListener;
+import me.aliceq.irc.IRCServer;
+import me.aliceq.irc.internal.IRCMessageRequest;
+import me.aliceq.irc.internal.IRCSocket;
+
+/**
+ * Stresses the request registry: many threads register and unregister
+ * requests in a tight loop while a local peer feeds the server's reader
+ * thread as fast as it can. Reports how many lines were dispatched, how many
+ * requests were registered and how many messages they received, and checks
+ * that no request is left behind.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class RegistryStressBenchmark {
+
+    private static final int THREAD_COUNT = 64;
+    private static final long DURATION = 3000;
+    private static final int SENDERS = 50;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // One chunk of lines from many senders, written over and over
+        StringBuilder lines = new StringBuilder();
+        int perChunk = 0;
+        while (lines.length() < 65536) {
+            lines.append(":nick").append(perChunk % SENDERS).append("!u@host PRIVMSG #chan").append(perChunk % 10)
+                    .append(" :hello there ").append(perChunk).append("\r\n");
+            perChunk++;
+        }
+        final byte[] chunk = lines.toString().getBytes(StandardCharsets.UTF_8);
+        final int linesPerChunk = perChunk;
+
+        try (final ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final AtomicLong fed = new AtomicLong();
+            final long end = System.currentTimeMillis() + DURATION;
+            Thread feed = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket peer = listener.accept()) {
+                        OutputStream out = peer.getOutputStream();
+                        while (System.currentTimeMillis() < end) {
+                            out.write(chunk);
+                            fed.addAndGet(linesPerChunk);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("feed stopped: " + e);
+                    }
+                }
+            });
+            feed.start();
+
+            IRCServer server = new IRCServer(new IRCSocket(listener.getInetAddress().getHostAddress(), listener.getLocalPort()));
+            server.setVerbosity(IRCServer.VERBOSITY_NONE);
+            server.setKeepalive(0, 0);
+            server.setReconnectPolicy(null);
+            server.start();
+
+            // Half the threads wait for a type, half for a sender
+            final AtomicLong registered = new AtomicLong();
+            final AtomicLong delivered = new AtomicLong();
+            Thread[] threads = new Thread[THREAD_COUNT];
+            for (int i = 0; i < threads.length; i++) {
+                final IRCServer target = server;
+                final IRCMessageListener filter = i % 2 == 0 ? IRCMessageFilter.type("PRIVMSG") : IRCMessageFilter.sender("nick" + (i % SENDERS));
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (System.currentTimeMillis() < end) {
+                            try {
+                                IRCMessage message = new IRCMessageRequest(target, filter).push(10);
+                                registered.incrementAndGet();
+                                if (message != null) {
+                                    delivered.incrementAndGet();
+                                }
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            feed.join();
+
+            double seconds = DURATION / 1000.0;
+            System.out.printf("%d threads for %.0f s: %.0f lines/s fed, %.0f registrations/s, %.0f deliveries/s, %d requests left%n",
+                    THREAD_COUNT, seconds, fed.get() / seconds, registered.get() / seconds, delivered.get() / seconds,
+                    server.activeRequests());
+            server.quit();
+        }
+    }
+}
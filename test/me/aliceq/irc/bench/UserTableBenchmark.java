@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Alice Quiros <email@aliceq.me>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package me.aliceq.irc.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import me.aliceq.irc.IRCChannel;
+import me.aliceq.irc.IRCServer;
+import me.aliceq.irc.internal.IRCSocket;
+
+/**
+ * Measures the retained memory of the server-wide user table and the cost of
+ * fanning a QUIT out to a user's channels. The server is connected to a local
+ * socket which is never read, since only its tables are used.
+ *
+ * @author Alice Quiros <email@aliceq.me>
+ */
+public final class UserTableBenchmark {
+
+    private static final int USER_COUNT = 200000;
+    private static final int CHANNEL_COUNT = 100;
+
+    /**
+     * Returns the heap in use after collecting garbage
+     */
+    private static long used() {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String[] nicks = new String[USER_COUNT];
+        for (int i = 0; i < nicks.length; i++) {
+            nicks[i] = "User" + i;
+        }
+
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            IRCServer server = new IRCServer(new IRCSocket(listener.getInetAddress().getHostAddress(), listener.getLocalPort()));
+            IRCChannel[] plain = new IRCChannel[CHANNEL_COUNT];
+            IRCChannel[] tracked = new IRCChannel[CHANNEL_COUNT];
+
+            // Members of channels which are not attached to a server
+            long base = used();
+            for (int i = 0; i < plain.length; i++) {
+                plain[i] = new IRCChannel("#plain" + i, null);
+            }
+            for (int i = 0; i < nicks.length; i++) {
+                plain[i % plain.length].addUser(nicks[i]);
+            }
+            long members = used() - base;
+
+            // The same members again, also tracked by the server
+            base = used();
+            for (int i = 0; i < tracked.length; i++) {
+                tracked[i] = server.getChannel("#tracked" + i);
+            }
+            for (int i = 0; i < nicks.length; i++) {
+                tracked[i % tracked.length].addUser(nicks[i]);
+            }
+            long trackedMembers = used() - base;
+
+            // Every user joins a second channel
+            base = used();
+            for (int i = 0; i < nicks.length; i++) {
+                tracked[(i + 1) % tracked.length].addUser(nicks[i]);
+            }
+            long second = used() - base;
+
+            System.out.printf("channel member: %.1f B/user%n", (double) members / nicks.length);
+            System.out.printf("tracker: %.1f B/user%n", (double) (trackedMembers - members) / nicks.length);
+            System.out.printf("second channel: %.1f B/user%n", (double) second / nicks.length);
+
+            long start = System.nanoTime();
+            for (String nick : nicks) {
+                server.removeUser(nick);
+            }
+            System.out.printf("quit fan-out: %.0f ns/user, %d users and %d members left%n",
+                    (System.nanoTime() - start) / (double) nicks.length, server.userCount(), tracked[0].userCount());
+
+            // Keeps the untracked channels reachable until they are measured
+            System.out.println(plain.length + " untracked channels");
+        }
+    }
+}